@@ -4,36 +4,37 @@
 
 package examples.baku.io.permissions;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Stack;
+import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreValueListener;
+
 /**
  * Created by phamilton on 7/9/16.
  */
 public class Blessing implements Iterable<Blessing.Rule> {
 
     private static final String KEY_PERMISSIONS = "_permissions";
-    private static final String KEY_RULES = "rules";
+    static final String KEY_RULES = "rules";
 
     private String id;
     //    private String pattern;
     private String source;
     private String target;
-    private DatabaseReference ref;
-    private DatabaseReference rulesRef;
-    private DataSnapshot snapshot;
+    private StoreReference ref;
+    private StoreReference rulesRef;
+    private StoreSnapshot snapshot;
+    private RuleTree rules = RuleTree.EMPTY;
 
     final private Map<String, PermissionReference> refCache = new HashMap<>();
 
-    public Blessing(DataSnapshot snapshot) {
+    public Blessing(StoreSnapshot snapshot) {
         setSnapshot(snapshot);
         this.id = snapshot.child("id").getValue(String.class);
         this.target = snapshot.child("target").getValue(String.class);
@@ -41,19 +42,19 @@ public class Blessing implements Iterable<Blessing.Rule> {
             this.source = snapshot.child("source").getValue(String.class);
     }
 
-    public Blessing(String target, String source, DatabaseReference ref) {
+    public Blessing(String target, String source, StoreReference ref) {
         setRef(ref);
         setId(ref.getKey());
         setSource(source);
         setTarget(target);
-        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+        ref.addSingleValueListener(new StoreValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(StoreSnapshot dataSnapshot) {
                 setSnapshot(dataSnapshot);
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(StoreError databaseError) {
                 databaseError.toException().printStackTrace();
             }
         });
@@ -90,14 +91,47 @@ public class Blessing implements Iterable<Blessing.Rule> {
         ref.child("target").setValue(target);
     }
 
-    public void setSnapshot(DataSnapshot snapshot) {
+    public void setSnapshot(StoreSnapshot snapshot) {
         if (!snapshot.exists()) {
             throw new IllegalArgumentException("empty snapshot");
         }
+        this.rules = compileRules(snapshot.child(KEY_RULES));
         this.snapshot = snapshot;
         setRef(snapshot.getRef());
     }
 
+    RuleTree getRules() {
+        return rules;
+    }
+
+    //compile the rules subtree once, so permission checks never touch the snapshot
+    static RuleTree compileRules(StoreSnapshot rulesSnapshot) {
+        RuleTree.Builder builder = new RuleTree.Builder();
+        builder.setPermissions(RuleTree.Builder.getRoot(), getPermissions(rulesSnapshot));
+        compileRules(builder, RuleTree.Builder.getRoot(), rulesSnapshot);
+        return builder.build();
+    }
+
+    private static void compileRules(RuleTree.Builder builder, int parent, StoreSnapshot node) {
+        for (StoreSnapshot child : node.getChildren()) {
+            if (child.getKey().startsWith("_")) { //ignore keys with '_' prefix
+                continue;
+            }
+            int compiled = builder.addChild(parent, child.getKey(), getPermissions(child));
+            compileRules(builder, compiled, child);
+        }
+    }
+
+    private static int getPermissions(StoreSnapshot node) {
+        if (node.hasChild(KEY_PERMISSIONS)) {
+            Integer permissions = node.child(KEY_PERMISSIONS).getValue(Integer.class);
+            if (permissions != null) {
+                return permissions;
+            }
+        }
+        return PermissionManager.FLAG_DEFAULT;
+    }
+
     public Blessing setPermissions(String path, int permissions) {
         getRef(path).setPermission(permissions);
         return this;
@@ -127,7 +161,7 @@ public class Blessing implements Iterable<Blessing.Rule> {
         return result;
     }
 
-    public void setRef(DatabaseReference ref) {
+    public void setRef(StoreReference ref) {
         this.ref = ref;
         this.rulesRef = ref.child(KEY_RULES);
     }
@@ -139,22 +173,23 @@ public class Blessing implements Iterable<Blessing.Rule> {
         if (path == null) {
             throw new IllegalArgumentException("illegal path value");
         }
-        String[] pathItems = path.split("/");
-        DataSnapshot currentNode = snapshot;
-        if (currentNode.hasChild(KEY_PERMISSIONS)) {
-            starting |= currentNode.child(KEY_PERMISSIONS).getValue(Integer.class);
+        return starting | rules.getPermissionAt(path);
+    }
+
+    //visits every rule, starting with the root rule (depth 0), parents before children, through a
+    //single reused cursor. cursor values are only valid during the visit call.
+    public void visitRules(RuleVisitor visitor) {
+        if (isSynched()) {
+            visitRules(rules, new RuleCursor(), visitor);
         }
-        for (int i = 0; i < pathItems.length; i++) {
-            if (currentNode.hasChild(pathItems[i])) {
-                currentNode = snapshot.child(pathItems[i]);
-            } else {  //child doesn't exist
-                break;
-            }
-            if (currentNode.hasChild(KEY_PERMISSIONS)) {
-                starting |= currentNode.child(KEY_PERMISSIONS).getValue(Integer.class);
-            }
+    }
+
+    static void visitRules(RuleTree tree, RuleCursor cursor, RuleVisitor visitor) {
+        cursor.tree = tree;
+        for (int node = 0; node < tree.size(); node++) {
+            cursor.node = node;
+            visitor.visit(cursor);
         }
-        return starting;
     }
 
     @Override
@@ -162,44 +197,23 @@ public class Blessing implements Iterable<Blessing.Rule> {
         if (!isSynched()) {
             return null;
         }
-        final Stack<DataSnapshot> nodeStack = new Stack<>();
-        nodeStack.push(snapshot.child(KEY_RULES));
-
-        final Stack<Rule> inheritanceStack = new Stack<>();
-        inheritanceStack.push(new Rule(null, 0)); //default rule
-
+        final RuleTree tree = rules;
         return new Iterator<Rule>() {
+            int node = 0;
+
             @Override
             public boolean hasNext() {
-                return !nodeStack.isEmpty();
+                return node < tree.size();
             }
 
             @Override
             public Rule next() {
-                DataSnapshot node = nodeStack.pop();
-                Rule inheritedRule = inheritanceStack.pop();
-
-                Rule result = new Rule();
-                String key = node.getKey();
-                if (!KEY_RULES.equals(key)) {   //key_rules is the root directory
-                    if (inheritedRule.path != null) {
-                        result.path = inheritedRule.path + "/" + key;
-                    } else {
-                        result.path = key;
-                    }
-                }
-
-                result.permissions = inheritedRule.permissions;
-                if (node.hasChild(KEY_PERMISSIONS)) {
-                    result.permissions |= node.child(KEY_PERMISSIONS).getValue(Integer.class);
-                }
-                for (final DataSnapshot child : node.getChildren()) {
-                    if (child.getKey().startsWith("_")) { //ignore keys with '_' prefix
-                        continue;
-                    }
-                    nodeStack.push(child);
-                    inheritanceStack.push(result);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                String path = node == 0 ? null : tree.getPath(node);  //root rule has no path
+                Rule result = new Rule(path, tree.getInheritedPermissions(node));
+                node++;
                 return result;
             }
 
@@ -210,6 +224,54 @@ public class Blessing implements Iterable<Blessing.Rule> {
         };
     }
 
+    public interface RuleVisitor {
+        void visit(RuleCursor cursor);
+    }
+
+    /**
+     * Mutable view of one compiled rule, reused for every rule of a visit.
+     * Path segments are exposed individually so visitors don't need to build path strings.
+     */
+    public static class RuleCursor {
+        private RuleTree tree;
+        private int node;
+
+        //number of segments in the rule path
+        public int getDepth() {
+            return tree.getDepth(node);
+        }
+
+        //segment of the rule path at depth, from 1 (top level) to getDepth()
+        public String getSegment(int depth) {
+            if (depth < 1 || depth > getDepth()) {
+                throw new IndexOutOfBoundsException("depth " + depth);
+            }
+            int current = node;
+            for (int i = getDepth(); i > depth; i--) {
+                current = tree.getParent(current);
+            }
+            return tree.getSegment(current);
+        }
+
+        //permissions granted at this rule, including those inherited from its ancestors
+        public int getPermissions() {
+            return tree.getInheritedPermissions(node);
+        }
+
+        //allocates, prefer getSegment on hot paths
+        public String getPath() {
+            return tree.getPath(node);
+        }
+
+        RuleTree getTree() {
+            return tree;
+        }
+
+        int getNode() {
+            return node;
+        }
+    }
+
     public static class Rule {
         private String path;
         private int permissions;
@@ -0,0 +1,652 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Permission state indexed by path segment.
+ *
+ * Each node holds the combined rule permissions at its path and the listeners registered there,
+ * so ancestor, subtree and effective permission lookups are a single walk over the path string.
+ * Lookups match segments in place and never allocate; only node creation copies a segment, and
+ * segments are interned so repeated keys ("messages", "subject", ...) share one instance.
+ *
+ * Writers must hold the trie lock. Child tables are copy-on-write and permissions are volatile,
+ * so readers walk without locking; a sequence counter bumped around every write lets them detect
+ * an overlapping write and retry under the lock.
+ */
+class PathTrie<L> {
+
+    static final char SEPARATOR = '/';
+
+    private final Map<String, String> mSegments = new HashMap<>();
+    private final Node<L> mRoot = new Node<>(null, "", 0);
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    //odd while a write is in progress
+    private volatile int mSequence;
+
+    void lock() {
+        mLock.lock();
+        if (mLock.getHoldCount() == 1) {
+            mSequence++;
+        }
+    }
+
+    //lock() unless another thread holds the lock
+    boolean tryLock() {
+        if (!mLock.tryLock()) {
+            return false;
+        }
+        if (mLock.getHoldCount() == 1) {
+            mSequence++;
+        }
+        return true;
+    }
+
+    void unlock() {
+        if (mLock.getHoldCount() == 1) {
+            mSequence++;
+        }
+        mLock.unlock();
+    }
+
+    Node<L> getRoot() {
+        return mRoot;
+    }
+
+    //exact node at path, or null
+    Node<L> find(String path) {
+        checkPath(path);
+        Node<L> node = mRoot;
+        int start = 0;
+        int length = path.length();
+        while (node != null && start < length) {
+            int end = segmentEnd(path, start);
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    Node<L> getOrCreate(String path) {
+        checkPath(path);
+        Node<L> node = mRoot;
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int end = segmentEnd(path, start);
+            Node<L> child = node.getChild(path, start, end);
+            if (child == null) {
+                child = node.addChild(intern(path.substring(start, end)));
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    Node<L> getOrCreateChild(Node<L> node, String segment, int hash) {
+        Node<L> child = node.getChild(segment, 0, segment.length(), hash);
+        if (child == null) {
+            child = node.addChild(intern(segment));
+        }
+        return child;
+    }
+
+    //deepest node at or above path holding a rule, or null
+    Node<L> findNearestRule(String path) {
+        checkPath(path);
+        Node<L> node = mRoot;
+        Node<L> result = null;
+        int start = 0;
+        int length = path.length();
+        while (node != null) {
+            if (node.hasRule()) {
+                result = node;
+            }
+            if (start >= length) {
+                break;
+            }
+            int end = segmentEnd(path, start);
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    //permissions are inherited, so combine every rule at or above path.
+    //safe to call without holding the lock.
+    int getPermission(String path) {
+        checkPath(path);
+        int sequence = mSequence;
+        if ((sequence & 1) == 0) {
+            int result = walkPermission(path);
+            if (mSequence == sequence) {
+                return result;
+            }
+        }
+        lock();
+        try {
+            return walkPermission(path);
+        } finally {
+            unlock();
+        }
+    }
+
+    //resolve many paths at once into results, indexed like paths. segments shared with the
+    //previous path are not walked again, so paths grouped by prefix resolve fastest.
+    //safe to call without holding the lock.
+    void getPermissions(String[] paths, int[] results) {
+        for (String path : paths) {
+            checkPath(path);
+        }
+        int sequence = mSequence;
+        if ((sequence & 1) == 0) {
+            walkPermissions(paths, results);
+            if (mSequence == sequence) {
+                return;
+            }
+        }
+        lock();
+        try {
+            walkPermissions(paths, results);
+        } finally {
+            unlock();
+        }
+    }
+
+    private void walkPermissions(String[] paths, int[] results) {
+        //node, inherited permissions and segment end offset of each level of the previous path
+        Node<L>[] nodes = newNodeArray(8);
+        int[] permissions = new int[8];
+        int[] ends = new int[8];
+        nodes[0] = mRoot;
+        permissions[0] = mRoot.mPermissions;
+        int depth = 0;
+        String previous = null;
+        for (int index = 0; index < paths.length; index++) {
+            String path = paths[index];
+            int length = path.length();
+            if (previous != null) {
+                int common = 0;
+                int max = Math.min(previous.length(), length);
+                while (common < max && previous.charAt(common) == path.charAt(common)) {
+                    common++;
+                }
+                int shared = 0;
+                while (shared < depth) {
+                    int end = ends[shared + 1];
+                    if (end > common || (end < length && path.charAt(end) != SEPARATOR)) {
+                        break;
+                    }
+                    shared++;
+                }
+                depth = shared;
+            }
+
+            int start = depth == 0 ? 0 : ends[depth] + 1;
+            Node<L> node = nodes[depth];
+            while (start < length) {
+                int end = segmentEnd(path, start);
+                node = node.getChild(path, start, end);
+                if (node == null) {
+                    break;
+                }
+                if (++depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    permissions = Arrays.copyOf(permissions, depth * 2);
+                    ends = Arrays.copyOf(ends, depth * 2);
+                }
+                nodes[depth] = node;
+                permissions[depth] = permissions[depth - 1] | node.mPermissions;
+                ends[depth] = end;
+                start = end + 1;
+            }
+            results[index] = permissions[depth];
+            previous = path;
+        }
+    }
+
+    //write counter, odd while a write is in progress
+    int getSequence() {
+        return mSequence;
+    }
+
+    private int walkPermission(String path) {
+        Node<L> node = mRoot;
+        int result = PermissionManager.FLAG_DEFAULT;
+        int start = 0;
+        int length = path.length();
+        while (node != null) {
+            result |= node.mPermissions;
+            if (start >= length) {
+                break;
+            }
+            int end = segmentEnd(path, start);
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    //permission inherited by node, combining every rule on its ancestor chain
+    static int getPermission(Node<?> node) {
+        int result = PermissionManager.FLAG_DEFAULT;
+        for (Node<?> current = node; current != null; current = current.mParent) {
+            result |= current.mPermissions;
+        }
+        return result;
+    }
+
+    //permission node inherited before the changes stamped with generation
+    static int getPreviousPermission(Node<?> node, int generation) {
+        int result = PermissionManager.FLAG_DEFAULT;
+        for (Node<?> current = node; current != null; current = current.mParent) {
+            result |= current.mStamp == generation ? current.mPreviousPermissions : current.mPermissions;
+        }
+        return result;
+    }
+
+    //add every node at or below node with registered listeners or batch members
+    static <L> void collectListeners(Node<L> node, List<Node<L>> result) {
+        if (node.mSubtreeListeners == 0) {
+            return;
+        }
+        if (node.hasListeners()) {
+            result.add(node);
+        }
+        Node<L>[] children = node.mChildren;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                collectListeners(children[i], result);
+            }
+        }
+    }
+
+    //add every node at or below node holding a rule
+    static <L> void collectRules(Node<L> node, List<Node<L>> result) {
+        if (node.hasRule()) {
+            result.add(node);
+        }
+        Node<L>[] children = node.mChildren;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                collectRules(children[i], result);
+            }
+        }
+    }
+
+    //whether any subtree watcher is registered in the trie
+    boolean isWatched() {
+        return mRoot.mSubtreeWatchers > 0;
+    }
+
+    //report the permission changes at and below a node changed in generation to every watcher of
+    //a subtree containing them. only watched roots and nodes holding, or losing, a rule are reported.
+    //changes below a node already covered by a changed ancestor are skipped.
+    static <L> void visitWatchedChanges(Node<L> changed, int generation, ChangeVisitor<L> visitor) {
+        boolean watched = changed.hasWatchers();
+        for (Node<L> current = changed.mParent; current != null; current = current.mParent) {
+            if (current.mStamp == generation && current.mPermissions != current.mPreviousPermissions) {
+                return;
+            }
+            watched |= current.hasWatchers();
+        }
+        Node<L> parent = changed.mParent;
+        int previous = parent == null ? PermissionManager.FLAG_DEFAULT : getPreviousPermission(parent, generation);
+        int current = parent == null ? PermissionManager.FLAG_DEFAULT : getPermission(parent);
+        visitWatchedChanges(changed, generation, watched, previous, current, visitor);
+    }
+
+    private static <L> void visitWatchedChanges(Node<L> node, int generation, boolean watched,
+                                                int previous, int current, ChangeVisitor<L> visitor) {
+        watched |= node.hasWatchers();
+        if (!watched && node.mSubtreeWatchers == 0) {
+            return;
+        }
+        previous |= node.mStamp == generation ? node.mPreviousPermissions : node.mPermissions;
+        current |= node.mPermissions;
+        boolean reported = node.hasRule() || node.hasWatchers() || node.mStamp == generation;
+        if (watched && previous != current && reported) {
+            for (Node<L> ancestor = node; ancestor != null; ancestor = ancestor.mParent) {
+                if (ancestor.hasWatchers()) {
+                    for (PermissionManager.SubtreeWatcher watcher : ancestor.mWatchers) {
+                        visitor.onChange(watcher, node, previous, current);
+                    }
+                }
+            }
+        }
+        Node<L>[] children = node.mChildren;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                visitWatchedChanges(children[i], generation, watched, previous, current, visitor);
+            }
+        }
+    }
+
+    interface ChangeVisitor<L> {
+        void onChange(PermissionManager.SubtreeWatcher watcher, Node<L> node, int previous, int current);
+    }
+
+    //remove node and any ancestors left without rules, listeners or children
+    static <L> void prune(Node<L> node) {
+        while (node.mParent != null && node.isEmpty()) {
+            node.mParent.removeChild(node);
+            node = node.mParent;
+        }
+    }
+
+    static String getPath(Node<?> node) {
+        if (node.mParent == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(node.mSegment);
+        for (Node<?> current = node.mParent; current.mParent != null; current = current.mParent) {
+            builder.insert(0, SEPARATOR).insert(0, current.mSegment);
+        }
+        return builder.toString();
+    }
+
+    static int segmentEnd(String path, int start) {
+        int end = path.indexOf(SEPARATOR, start);
+        return end == -1 ? path.length() : end;
+    }
+
+    static int hash(CharSequence path, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h;
+    }
+
+    private static void checkPath(String path) {
+        if (path == null) {
+            throw new IllegalArgumentException("illegal path value");
+        }
+        if (path.length() > 0 && path.charAt(0) == SEPARATOR) {
+            throw new IllegalArgumentException("Path can't start with /");
+        }
+    }
+
+    private String intern(String segment) {
+        String result = mSegments.get(segment);
+        if (result == null) {
+            mSegments.put(segment, segment);
+            result = segment;
+        }
+        return result;
+    }
+
+    //generic arrays can't be created directly
+    @SuppressWarnings("unchecked")
+    static <L> Node<L>[] newNodeArray(int size) {
+        return (Node<L>[]) new Node<?>[size];
+    }
+
+    static final class Node<L> {
+        private static final Node<?>[] EMPTY = new Node<?>[0];
+
+        private final Node<L> mParent;
+        private final String mSegment;
+        private final int mHash;
+
+        //open addressed by segment hash, always a power of two in size
+        private volatile Node<L>[] mChildren = empty();
+        private int mChildCount;
+
+        //number of blessing rules at this node, and how many of them grant each permission bit
+        private int mRuleCount;
+        private int[] mBitCounts;
+        private volatile int mPermissions;
+
+        //generation of the last change applied to this node, and its permissions before it
+        private int mStamp;
+        private int mPreviousPermissions;
+        private int mNotifiedStamp;
+
+        private Set<L> mListeners;
+        private Set<PermissionManager.BatchMember> mBatchMembers;
+        //listeners and batch members at or below this node
+        private int mSubtreeListeners;
+
+        //listeners of every change at or below this node
+        private Set<PermissionManager.SubtreeWatcher> mWatchers;
+        private int mSubtreeWatchers;
+
+        private Node(Node<L> parent, String segment, int hash) {
+            this.mParent = parent;
+            this.mSegment = segment;
+            this.mHash = hash;
+        }
+
+        Node<L> getParent() {
+            return mParent;
+        }
+
+        String getSegment() {
+            return mSegment;
+        }
+
+        boolean hasRule() {
+            return mRuleCount > 0;
+        }
+
+        int getPermissions() {
+            return mPermissions;
+        }
+
+        int getPreviousPermissions() {
+            return mPreviousPermissions;
+        }
+
+        //record the pre-change permissions the first time node is changed in a generation.
+        //returns false if it was already touched.
+        boolean touch(int generation) {
+            if (mStamp == generation) {
+                return false;
+            }
+            mStamp = generation;
+            mPreviousPermissions = mPermissions;
+            return true;
+        }
+
+        //returns false if node's listeners were already notified in generation
+        boolean markNotified(int generation) {
+            if (mNotifiedStamp == generation) {
+                return false;
+            }
+            mNotifiedStamp = generation;
+            return true;
+        }
+
+        void addRule(int permissions) {
+            mRuleCount++;
+            for (int bits = permissions; bits != 0; bits &= bits - 1) {
+                if (mBitCounts == null) {
+                    mBitCounts = new int[Integer.SIZE];
+                }
+                mBitCounts[Integer.numberOfTrailingZeros(bits)]++;
+            }
+            mPermissions |= permissions;
+        }
+
+        void removeRule(int permissions) {
+            mRuleCount--;
+            for (int bits = permissions; bits != 0; bits &= bits - 1) {
+                int bit = Integer.numberOfTrailingZeros(bits);
+                if (--mBitCounts[bit] == 0) {
+                    mPermissions &= ~(1 << bit);
+                }
+            }
+        }
+
+        //whether any listener or batch member is registered at this node
+        boolean hasListeners() {
+            return (mListeners != null && !mListeners.isEmpty())
+                    || (mBatchMembers != null && !mBatchMembers.isEmpty());
+        }
+
+        Set<L> getListeners() {
+            return mListeners != null ? mListeners : Collections.<L>emptySet();
+        }
+
+        void addListener(L listener) {
+            if (mListeners == null) {
+                mListeners = new CopyOnWriteArraySet<>();
+            }
+            if (mListeners.add(listener)) {
+                countListener(1);
+            }
+        }
+
+        boolean removeListener(L listener) {
+            if (mListeners == null || !mListeners.remove(listener)) {
+                return false;
+            }
+            countListener(-1);
+            return true;
+        }
+
+        Set<PermissionManager.BatchMember> getBatchMembers() {
+            return mBatchMembers != null ? mBatchMembers : Collections.<PermissionManager.BatchMember>emptySet();
+        }
+
+        void addBatchMember(PermissionManager.BatchMember member) {
+            if (mBatchMembers == null) {
+                mBatchMembers = new CopyOnWriteArraySet<>();
+            }
+            if (mBatchMembers.add(member)) {
+                countListener(1);
+            }
+        }
+
+        boolean removeBatchMember(PermissionManager.BatchMember member) {
+            if (mBatchMembers == null || !mBatchMembers.remove(member)) {
+                return false;
+            }
+            countListener(-1);
+            return true;
+        }
+
+        private void countListener(int delta) {
+            for (Node<L> current = this; current != null; current = current.mParent) {
+                current.mSubtreeListeners += delta;
+            }
+        }
+
+        boolean hasWatchers() {
+            return mWatchers != null && !mWatchers.isEmpty();
+        }
+
+        Set<PermissionManager.SubtreeWatcher> getWatchers() {
+            return mWatchers != null ? mWatchers : Collections.<PermissionManager.SubtreeWatcher>emptySet();
+        }
+
+        void addWatcher(PermissionManager.SubtreeWatcher watcher) {
+            if (mWatchers == null) {
+                mWatchers = new CopyOnWriteArraySet<>();
+            }
+            if (mWatchers.add(watcher)) {
+                for (Node<L> current = this; current != null; current = current.mParent) {
+                    current.mSubtreeWatchers++;
+                }
+            }
+        }
+
+        boolean removeWatcher(PermissionManager.SubtreeWatcher watcher) {
+            if (mWatchers == null || !mWatchers.remove(watcher)) {
+                return false;
+            }
+            for (Node<L> current = this; current != null; current = current.mParent) {
+                current.mSubtreeWatchers--;
+            }
+            return true;
+        }
+
+        boolean isEmpty() {
+            return mRuleCount == 0 && !hasListeners() && !hasWatchers() && mChildCount == 0;
+        }
+
+        Node<L> getChild(String path, int start, int end) {
+            if (mChildren.length == 0) {
+                return null;
+            }
+            return getChild(path, start, end, hash(path, start, end));
+        }
+
+        Node<L> getChild(String path, int start, int end, int h) {
+            Node<L>[] children = mChildren;
+            if (children.length == 0) {
+                return null;
+            }
+            int length = end - start;
+            int mask = children.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node<L> child = children[i];
+                if (child == null) {
+                    return null;
+                }
+                if (child.mHash == h && child.mSegment.length() == length
+                        && path.regionMatches(start, child.mSegment, 0, length)) {
+                    return child;
+                }
+            }
+        }
+
+        private Node<L> addChild(String segment) {
+            int size = mChildren.length;
+            if ((mChildCount + 1) * 4 > size * 3) {
+                size = Math.max(4, size * 2);
+            }
+            Node<L> child = new Node<>(this, segment, segment.hashCode());
+            Node<L>[] children = copyChildren(size, null);
+            insert(children, child);
+            mChildren = children;
+            mChildCount++;
+            return child;
+        }
+
+        private void removeChild(Node<L> child) {
+            mChildren = mChildCount == 1 ? Node.<L>empty() : copyChildren(mChildren.length, child);
+            mChildCount--;
+        }
+
+        //children are replaced rather than mutated in place, so unlocked readers always probe a
+        //complete table
+        private Node<L>[] copyChildren(int size, Node<L> excluded) {
+            Node<L>[] children = newNodeArray(size);
+            for (Node<L> child : mChildren) {
+                if (child != null && child != excluded) {
+                    insert(children, child);
+                }
+            }
+            return children;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <L> Node<L>[] empty() {
+            return (Node<L>[]) EMPTY;
+        }
+
+        private static <L> void insert(Node<L>[] table, Node<L> node) {
+            int mask = table.length - 1;
+            int i = node.mHash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = node;
+        }
+    }
+}
@@ -4,29 +4,48 @@
 
 package examples.baku.io.permissions;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import examples.baku.io.permissions.store.StoreChildListener;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreValueListener;
 
 /**
  * Created by phamilton on 6/28/16.
  */
 public class PermissionManager {
 
-    DatabaseReference mDatabaseRef;
-    DatabaseReference mBlessingsRef;
-    DatabaseReference mRequestsRef;
+    StoreReference mDatabaseRef;
+    StoreReference mBlessingsRef;
+    StoreReference mRequestsRef;
 
     public static final int FLAG_DEFAULT = 0;
     public static final int FLAG_WRITE = 1 << 0;
@@ -46,120 +65,449 @@ public class PermissionManager {
     final Set<OnRequestListener> requestListeners = new HashSet<>();
     final Multimap<String, OnReferralListener> referralListeners = HashMultimap.create();
 
+    //guarded by the permission trie lock, like mAppliedRules
     final Map<String, Blessing> mBlessings = new HashMap<>();
     //<targetId, blessingId>
     //TODO: allow for multiple granted blessings per target
     final Map<String, Blessing> mGrantedBlessings = new HashMap<>();
 
-    final Map<String, Integer> mCachedPermissions = new HashMap<>();
-    final Multimap<String, OnPermissionChangeListener> mPermissionValueEventListeners = HashMultimap.create();
-    final Multimap<String, String> mNearestAncestors = HashMultimap.create();
+    //<blessingId, rules> compiled rules last applied for each blessing
+    final Map<String, RuleTree> mAppliedRules = new HashMap<>();
+
+    //combined permissions of all blessings and the listeners registered at each path.
+    //permission reads don't lock, writes hold the trie lock.
+    final PathTrie<OnPermissionChangeListener> mPermissions = new PathTrie<>();
+
+    //<listener, batch> batch listener registrations
+    final Multimap<OnPermissionsChangeListener, PermissionBatch> mPermissionBatches = HashMultimap.create();
+    //<listener, watcher> subtree listener registrations
+    final Multimap<OnPermissionsChangeListener, SubtreeWatcher> mSubtreeWatchers = HashMultimap.create();
+
+    static final int DECISION_CACHE_SIZE = 1024;
+
+    //<path, permissions> recent getPermission results, including paths without rules.
+    //bounded, least recently used paths are evicted first.
+    final Cache<String, Integer> mDecisions = CacheBuilder.newBuilder()
+            .maximumSize(DECISION_CACHE_SIZE)
+            .removalListener(new RemovalListener<String, Integer>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Integer> notification) {
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        mRemovedDecisions.offer(notification.getKey());
+                        mRemovedDecisionCount.incrementAndGet();
+                    }
+                }
+            })
+            .build();
+    //every path cached in mDecisions, sorted so the paths at or below a node are one range.
+    //paths are added lock free after caching, and only removed under the permission lock, so a
+    //getPermission racing a removal sees the write and drops its own entry.
+    private final ConcurrentSkipListSet<String> mDecisionPaths = new ConcurrentSkipListSet<>();
+    //paths dropped from mDecisions, still to be removed from mDecisionPaths
+    private final Queue<String> mRemovedDecisions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mRemovedDecisionCount = new AtomicInteger();
+
+    public static final long BATCH_IMMEDIATE = -1;
+    public static final long BATCH_FRAME = 0;
+
+    private volatile long mBatchWindow = BATCH_FRAME;
+    //<blessingId, snapshot> blessing events waiting to be applied, null for removed blessings
+    private final Map<String, StoreSnapshot> mPendingBlessings = new LinkedHashMap<>();
+    private boolean mFlushScheduled;    //guarded by mPendingBlessings
+    private Handler mHandler;   //guarded by this
+
+    //listener calls waiting to be made, queued under the permission lock in the order of the
+    //changes they report, and made outside it by one thread at a time. guarded by itself.
+    private final ArrayDeque<Runnable> mDispatches = new ArrayDeque<>();
+    private boolean mDispatching;
+
+    //guarded by the permission trie lock
+    private int mGeneration;
+    private final List<PathTrie.Node<OnPermissionChangeListener>> mTouchedNodes = new ArrayList<>();
+    private final RuleApplier mRuleApplier = new RuleApplier();
 
 
     //TODO: replace string ownerId with Auth
-    public PermissionManager(final DatabaseReference databaseReference, String owner) {
+    public PermissionManager(final StoreReference databaseReference, String owner) {
         this.mDatabaseRef = databaseReference;
         this.mId = owner;
 
         mRequestsRef = databaseReference.child(KEY_REQUESTS);
         //TODO: only consider requests from sources within the constelattion
-        mRequestsRef.addChildEventListener(requestListener);
+        mRequestsRef.addChildListener(requestListener);
 
         mBlessingsRef = mDatabaseRef.child(KEY_BLESSINGS);
-        mBlessingsRef.orderByChild("target").equalTo(mId).addChildEventListener(blessingListener);
-        mBlessingsRef.orderByChild("source").equalTo(mId).addListenerForSingleValueEvent(grantedBlessingListener);
+        mBlessingsRef.orderByChild("target").equalTo(mId).addChildListener(blessingListener);
+        mBlessingsRef.orderByChild("source").equalTo(mId).addSingleValueListener(grantedBlessingListener);
+    }
+
+    //coalesce blessing events arriving within this many milliseconds into a single refresh.
+    //BATCH_FRAME waits for the next frame, BATCH_IMMEDIATE applies every event as it arrives.
+    public void setBatchWindow(long millis) {
+        this.mBatchWindow = millis;
+        if (millis < 0) {
+            flushBlessings();
+        }
     }
 
-    void onBlessingUpdated(DataSnapshot snapshot) {
+    public long getBatchWindow() {
+        return mBatchWindow;
+    }
+
+    void onBlessingUpdated(StoreSnapshot snapshot) {
         if (!snapshot.exists()) {
             throw new IllegalArgumentException("snapshot value doesn't exist");
         }
-        String key = snapshot.getKey();
-        Blessing blessing = mBlessings.get(key);
-        if (blessing == null) {
-            blessing = new Blessing(snapshot);
-            mBlessings.put(key, blessing);
+        scheduleFlush(snapshot.getKey(), snapshot);
+    }
+
+    void onBlessingRemoved(StoreSnapshot snapshot) {
+        scheduleFlush(snapshot.getKey(), null);
+    }
+
+    private void scheduleFlush(String blessingId, StoreSnapshot snapshot) {
+        synchronized (mPendingBlessings) {
+            mPendingBlessings.put(blessingId, snapshot);
+            if (mBatchWindow >= 0 && mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = mBatchWindow >= 0;
+        }
+        if (mBatchWindow < 0) {
+            flushBlessings();
+        } else if (mBatchWindow == BATCH_FRAME) {   //the choreographer is only reachable from the main thread
+            getHandler().post(mPostFrameCallback);
         } else {
-            blessing.setSnapshot(snapshot);
+            getHandler().postDelayed(mFlushRunnable, mBatchWindow);
         }
+    }
 
-        refreshPermissions();
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        return mHandler;
     }
 
-    //TODO: optimize this mess. Currently, recalculating entire permission tree.
-    void refreshPermissions() {
-        Map<String, Integer> updatedPermissions = new HashMap<>();
-        for (Blessing blessing : mBlessings.values()) {
-            if (blessing.isSynched()) {
-                for (Blessing.Rule rule : blessing) {
-                    String path = rule.getPath();
-                    if (updatedPermissions.containsKey(path)) {
-                        updatedPermissions.put(path, updatedPermissions.get(path) | rule.getPermissions());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushBlessings();
+        }
+    };
+
+    private final Runnable mPostFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFlushFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mFlushFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushBlessings();
+        }
+    };
+
+    //apply every pending blessing event as one refresh, notifying each affected listener once.
+    //listeners are called after the permission lock is released, in the order of the refreshes:
+    //by the flushing thread, or by another one still calling listeners when it flushed.
+    public void flushBlessings() {
+        Map<String, StoreSnapshot> pending;
+        synchronized (mPendingBlessings) {
+            mFlushScheduled = false;    //a callback still posted will find nothing to flush
+            if (mPendingBlessings.isEmpty()) {
+                return;
+            }
+            pending = new LinkedHashMap<>(mPendingBlessings);
+            mPendingBlessings.clear();
+        }
+
+        final Map<SubtreeWatcher, List<PermissionChange>> subtreeChanges = new LinkedHashMap<>();
+        mPermissions.lock();
+        try {
+            mGeneration++;
+            mTouchedNodes.clear();
+            for (Map.Entry<String, StoreSnapshot> entry : pending.entrySet()) {
+                String key = entry.getKey();
+                StoreSnapshot snapshot = entry.getValue();
+                Blessing blessing = null;
+                if (snapshot == null) {
+                    mBlessings.remove(key);
+                } else {
+                    blessing = mBlessings.get(key);
+                    if (blessing == null) {
+                        blessing = new Blessing(snapshot);
+                        mBlessings.put(key, blessing);
                     } else {
-                        updatedPermissions.put(path, rule.getPermissions());
+                        blessing.setSnapshot(snapshot);
                     }
                 }
+                applyRules(key, blessing);
+            }
+            final List<PermissionNotification> notifications = refreshPermissions(subtreeChanges);
+            if (!notifications.isEmpty() || !subtreeChanges.isEmpty()) {
+                queueDispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchPermissionChanges(notifications, subtreeChanges);
+                    }
+                });
             }
+        } finally {
+            mPermissions.unlock();
         }
+        dispatchQueued();
+    }
 
-        mNearestAncestors.clear();
-        for (String path : mPermissionValueEventListeners.keySet()) {
-            String nearestAncestor = getNearestCommonAncestor(path, updatedPermissions.keySet());
-            if (nearestAncestor != null) {
-                mNearestAncestors.put(nearestAncestor, path);
+    //must hold the permission lock, so listener calls are queued in the order of the changes
+    private void queueDispatch(Runnable dispatch) {
+        synchronized (mDispatches) {
+            mDispatches.add(dispatch);
+        }
+    }
+
+    //make the queued listener calls, unless another thread, or a listener up the stack, already is
+    private void dispatchQueued() {
+        synchronized (mDispatches) {
+            if (mDispatching) {
+                return;
+            }
+            mDispatching = true;
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                Runnable dispatch;
+                synchronized (mDispatches) {
+                    dispatch = mDispatches.poll();
+                    if (dispatch == null) {
+                        mDispatching = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                dispatch.run();
+            }
+        } finally {
+            if (!drained) {     //a listener threw, the rest are called by the next dispatch
+                synchronized (mDispatches) {
+                    mDispatching = false;
+                }
             }
         }
+    }
 
-        Set<String> changedPermissions = new HashSet<>();
+    //swap the rules last applied for a blessing with its current ones in the permission trie
+    private void applyRules(String blessingId, Blessing blessing) {
+        RuleTree current = blessing != null && blessing.isSynched() ? blessing.getRules() : null;
+        RuleTree previous = current != null ? mAppliedRules.put(blessingId, current) : mAppliedRules.remove(blessingId);
+        if (previous == current) {
+            return;
+        }
+        if (previous != null) {
+            mRuleApplier.apply(previous, false);
+        }
+        if (current != null) {
+            mRuleApplier.apply(current, true);
+        }
+    }
 
-        Set<String> removedPermissions = new HashSet<>(mCachedPermissions.keySet());
-        removedPermissions.removeAll(updatedPermissions.keySet());
-        for (String path : removedPermissions) {
-            mCachedPermissions.remove(path);
-            String newPath = getNearestCommonAncestor(path, updatedPermissions.keySet());
-            changedPermissions.add(newPath);   //reset to default
+    //find the listeners below the nodes whose combined permissions changed in this generation,
+    //and gather the changes seen by each subtree watcher. must hold the permission lock.
+    List<PermissionNotification> refreshPermissions(Map<SubtreeWatcher, List<PermissionChange>> subtreeChanges) {
+        //only listeners at or below a changed node can see a different value
+        List<PathTrie.Node<OnPermissionChangeListener>> affectedNodes = null;
+        for (PathTrie.Node<OnPermissionChangeListener> node : mTouchedNodes) {
+            if (node.getPermissions() != node.getPreviousPermissions()) {
+                if (affectedNodes == null) {
+                    affectedNodes = new ArrayList<>();
+                }
+                PathTrie.collectListeners(node, affectedNodes);
+            }
+        }
+        if (affectedNodes != null) {
+            invalidateDecisions();
+            if (mPermissions.isWatched()) {
+                collectSubtreeChanges(subtreeChanges);
+            }
+        }
+        for (PathTrie.Node<OnPermissionChangeListener> node : mTouchedNodes) {
+            PathTrie.prune(node);
+        }
+        mTouchedNodes.clear();
+        if (affectedNodes == null) {
+            return Collections.emptyList();
         }
 
-        for (String path : updatedPermissions.keySet()) {
-            int current = updatedPermissions.get(path);
-            if (!mCachedPermissions.containsKey(path)) {
-                mCachedPermissions.put(path, current);
-                changedPermissions.add(path);
-            } else {
-                int previous = mCachedPermissions.get(path);
-                if (previous != current) {
-                    mCachedPermissions.put(path, current);
-                    changedPermissions.add(path);
+        List<PermissionNotification> result = new ArrayList<>();
+        int generation = mGeneration;
+        for (PathTrie.Node<OnPermissionChangeListener> node : affectedNodes) {
+            if (!node.markNotified(generation)) {   //reached through more than one changed ancestor
+                continue;
+            }
+            int permission = PathTrie.getPermission(node);
+            int previous = PathTrie.getPreviousPermission(node, generation);
+            if (permission != previous) {
+                result.add(new PermissionNotification(node, previous, permission));
+            }
+        }
+        return result;
+    }
+
+    //paths are resolved here since pruning may detach nodes that lost their last rule
+    private void collectSubtreeChanges(final Map<SubtreeWatcher, List<PermissionChange>> subtreeChanges) {
+        PathTrie.ChangeVisitor<OnPermissionChangeListener> visitor = new PathTrie.ChangeVisitor<OnPermissionChangeListener>() {
+            @Override
+            public void onChange(SubtreeWatcher watcher, PathTrie.Node<OnPermissionChangeListener> node, int previous, int current) {
+                List<PermissionChange> changes = subtreeChanges.get(watcher);
+                if (changes == null) {
+                    changes = new ArrayList<>();
+                    subtreeChanges.put(watcher, changes);
                 }
+                changes.add(new PermissionChange(PathTrie.getPath(node), previous, current));
+            }
+        };
+        for (PathTrie.Node<OnPermissionChangeListener> node : mTouchedNodes) {
+            if (node.getPermissions() != node.getPreviousPermissions()) {
+                PathTrie.visitWatchedChanges(node, mGeneration, visitor);
             }
         }
+    }
 
-        for (String path : changedPermissions) {
-            onPermissionsChange(path);
+    //drop cached decisions at or below the nodes changed in this generation, a range of the sorted
+    //paths per node. must run before pruning, which detaches nodes from their paths.
+    private void invalidateDecisions() {
+        for (PathTrie.Node<OnPermissionChangeListener> node : mTouchedNodes) {
+            if (node.getPermissions() == node.getPreviousPermissions()) {
+                continue;
+            }
+            String path = PathTrie.getPath(node);
+            if (path.isEmpty()) {   //the root rule changed
+                mDecisions.invalidateAll();
+                mDecisionPaths.clear();
+                break;
+            }
+            mDecisions.invalidate(path);
+            mDecisionPaths.remove(path);
+            //the paths starting with path + SEPARATOR
+            Iterator<String> below = mDecisionPaths.subSet(path + PathTrie.SEPARATOR,
+                    path + (char) (PathTrie.SEPARATOR + 1)).iterator();
+            while (below.hasNext()) {
+                mDecisions.invalidate(below.next());
+                below.remove();
+            }
+        }
+        pruneDecisionPaths();
+    }
+
+    //forget the paths dropped from mDecisions, unless cached again since. must hold the
+    //permission lock.
+    private void pruneDecisionPaths() {
+        String path;
+        while ((path = mRemovedDecisions.poll()) != null) {
+            mRemovedDecisionCount.decrementAndGet();
+            if (!mDecisions.asMap().containsKey(path)) {
+                mDecisionPaths.remove(path);
+            }
         }
+    }
 
+    private static class PermissionNotification {
+        final PathTrie.Node<OnPermissionChangeListener> node;
+        final int previous;
+        final int permission;
 
+        PermissionNotification(PathTrie.Node<OnPermissionChangeListener> node, int previous, int permission) {
+            this.node = node;
+            this.previous = previous;
+            this.permission = permission;
+        }
     }
 
-    //call all the listeners effected by a permission change at this path
-    void onPermissionsChange(String path) {
-        int permission = getPermission(path);
-        if (mNearestAncestors.containsKey(path)) {
-            for (String listenerPath : mNearestAncestors.get(path)) {
-                if (mPermissionValueEventListeners.containsKey(listenerPath)) {
-                    for (OnPermissionChangeListener listener : mPermissionValueEventListeners.get(listenerPath)) {
-                        listener.onPermissionChange(permission);
-                    }
+    //adds or removes the contribution of every rule in a compiled tree to the permission trie
+    private class RuleApplier implements Blessing.RuleVisitor {
+        private final Blessing.RuleCursor mCursor = new Blessing.RuleCursor();
+        //trie node of each rule in the tree being applied, indexed like the tree
+        private PathTrie.Node<OnPermissionChangeListener>[] mNodes = PathTrie.newNodeArray(16);
+        private boolean mAdd;
+
+        void apply(RuleTree rules, boolean add) {
+            if (mNodes.length < rules.size()) {
+                mNodes = PathTrie.newNodeArray(Math.max(rules.size(), mNodes.length * 2));
+            }
+            mNodes[0] = mPermissions.getRoot();
+            mAdd = add;
+            Blessing.visitRules(rules, mCursor, this);
+        }
+
+        @Override
+        public void visit(Blessing.RuleCursor cursor) {
+            RuleTree rules = cursor.getTree();
+            int rule = cursor.getNode();
+            PathTrie.Node<OnPermissionChangeListener> node;
+            if (rule == 0) {    //the root rule grants everywhere, most blessings leave it empty
+                if (rules.getPermissions(rule) == FLAG_DEFAULT) {
+                    return;
                 }
+                node = mPermissions.getRoot();
+            } else {
+                PathTrie.Node<OnPermissionChangeListener> parent = mNodes[rules.getParent(rule)];
+                String segment = rules.getSegment(rule);
+                node = mAdd
+                        ? mPermissions.getOrCreateChild(parent, segment, rules.getHash(rule))
+                        : parent.getChild(segment, 0, segment.length(), rules.getHash(rule));
             }
+            if (node.touch(mGeneration)) {
+                mTouchedNodes.add(node);
+            }
+            if (mAdd) {
+                node.addRule(cursor.getPermissions());
+            } else {
+                node.removeRule(cursor.getPermissions());
+            }
+            mNodes[rule] = node;
         }
     }
 
-    private ValueEventListener grantedBlessingListener = new ValueEventListener() {
+    //call the listeners registered at each changed node. members of a batch listener are
+    //gathered instead, so each batch is called once with all of its changes. subtree watchers
+    //are called last, once each.
+    void dispatchPermissionChanges(List<PermissionNotification> notifications,
+                                   Map<SubtreeWatcher, List<PermissionChange>> subtreeChanges) {
+        Map<PermissionBatch, List<PermissionChange>> batchChanges = null;
+        for (PermissionNotification notification : notifications) {
+            for (OnPermissionChangeListener listener : notification.node.getListeners()) {
+                listener.onPermissionChange(notification.permission);
+            }
+            for (BatchMember member : notification.node.getBatchMembers()) {
+                if (batchChanges == null) {
+                    batchChanges = new LinkedHashMap<>();
+                }
+                List<PermissionChange> changes = batchChanges.get(member.batch);
+                if (changes == null) {
+                    changes = new ArrayList<>();
+                    batchChanges.put(member.batch, changes);
+                }
+                changes.add(new PermissionChange(member.path, notification.previous, notification.permission));
+            }
+        }
+        if (batchChanges != null) {
+            for (Map.Entry<PermissionBatch, List<PermissionChange>> entry : batchChanges.entrySet()) {
+                entry.getKey().listener.onPermissionsChange(entry.getValue());
+            }
+        }
+        for (Map.Entry<SubtreeWatcher, List<PermissionChange>> entry : subtreeChanges.entrySet()) {
+            entry.getKey().listener.onPermissionsChange(entry.getValue());
+        }
+    }
+
+    private StoreValueListener grantedBlessingListener = new StoreValueListener() {
         @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
+        public void onDataChange(StoreSnapshot dataSnapshot) {
             if (dataSnapshot.exists()) {
-                for (DataSnapshot blessingSnap : dataSnapshot.getChildren()) {
+                for (StoreSnapshot blessingSnap : dataSnapshot.getChildren()) {
                     Blessing blessing = new Blessing(blessingSnap);
                     mGrantedBlessings.put(blessing.getId(), blessing);
                 }
@@ -167,39 +515,15 @@ public class PermissionManager {
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(StoreError databaseError) {
 
         }
     };
 
-    void onBlessingRemoved(DataSnapshot snapshot) {
-        Blessing removedBlessing = mBlessings.remove(snapshot.getKey());
-        refreshPermissions();
-    }
-
     public Blessing getGrantedBlessing(String target) {
         return mGrantedBlessings.get(target);
     }
 
-    static String getNearestCommonAncestor(String path, Set<String> ancestors) {
-        if (path.startsWith("/")) {
-            throw new IllegalArgumentException("Path can't start with /");
-        }
-        if (ancestors.contains(path)) {
-            return path;
-        }
-        String subpath = path;
-        int index;
-        while ((index = subpath.lastIndexOf("/")) != -1) {
-            subpath = subpath.substring(0, index);
-            if (ancestors.contains(subpath)) {
-                return subpath;
-            }
-        }
-
-        return null;
-    }
-
     //return a blessing interface for granting/revoking permissions
     public Blessing bless(String target) {
         Blessing result = getGrantedBlessing(target);
@@ -210,34 +534,30 @@ public class PermissionManager {
         return result;
     }
 
-    private ChildEventListener requestListener = new ChildEventListener() {
+    private StoreChildListener requestListener = new StoreChildListener() {
         @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+        public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
             onBlessingUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
             onBlessingUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {
             onBlessingRemoved(dataSnapshot);
         }
 
-        @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-
-        }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(StoreError databaseError) {
 
         }
     };
 
-    private void onRequestUpdated(DataSnapshot snapshot) {
+    private void onRequestUpdated(StoreSnapshot snapshot) {
         if (!snapshot.exists()) return;
 
         PermissionRequest request = snapshot.getValue(PermissionRequest.class);
@@ -251,7 +571,7 @@ public class PermissionManager {
     }
 
     //TODO: only notify listeners that returned true when the request was added
-    private void onRequestRemoved(DataSnapshot snapshot) {
+    private void onRequestRemoved(StoreSnapshot snapshot) {
         mRequests.remove(snapshot.getKey());
         PermissionRequest request = snapshot.getValue(PermissionRequest.class);
         if (request != null) {
@@ -262,68 +582,189 @@ public class PermissionManager {
     }
 
 
-    private ChildEventListener blessingListener = new ChildEventListener() {
+    private StoreChildListener blessingListener = new StoreChildListener() {
         @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+        public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
             onBlessingUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
             onBlessingUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {
             onBlessingRemoved(dataSnapshot);
         }
 
-        @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-
-        }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(StoreError databaseError) {
 
         }
     };
 
+    //permissions are inherited, so combine every rule at or above path.
+    //lock free, safe to call from any thread.
     public int getPermission(String path) {
-        if (mCachedPermissions.containsKey(path))
-            return mCachedPermissions.get(path);
-        int result = getCombinedPermission(path);
-        mCachedPermissions.put(path, result);
+        Integer cached = mDecisions.getIfPresent(path);
+        if (cached != null) {
+            return cached;
+        }
+        int sequence = mPermissions.getSequence();
+        int result = mPermissions.getPermission(path);
+        if ((sequence & 1) == 0) {  //paths without any rule are cached too, as FLAG_DEFAULT
+            mDecisions.put(path, result);
+            mDecisionPaths.add(path);
+            if (mPermissions.getSequence() != sequence) {   //may have missed a flush's invalidation
+                mDecisions.invalidate(path);
+            } else if (mRemovedDecisionCount.get() > DECISION_CACHE_SIZE && mPermissions.tryLock()) {
+                try {   //evicted paths would pile up in the index until the next flush
+                    pruneDecisionPaths();
+                } finally {
+                    mPermissions.unlock();
+                }
+            }
+        }
+        return result;
+    }
+
+    //resolve the permissions of many paths in one pass, indexed like the iteration order of paths
+    public int[] getPermissions(Collection<String> paths) {
+        String[] pathArray = paths.toArray(new String[paths.size()]);
+        int[] result = new int[pathArray.length];
+        mPermissions.getPermissions(pathArray, result);
         return result;
     }
 
-    private int getCombinedPermission(String path) {
-        int current = 0;
-        for (Blessing blessing : mBlessings.values()) {
-            current = blessing.getPermissionAt(path, current);
+    //listen to many paths with a single listener, called once per refresh with every path that
+    //changed. the first call reports every path, changed from FLAG_DEFAULT.
+    public OnPermissionsChangeListener addPermissionsEventListener(Collection<String> paths, final OnPermissionsChangeListener listener) {
+        String[] pathArray = paths.toArray(new String[paths.size()]);
+        int[] current = new int[pathArray.length];
+        PermissionBatch batch = new PermissionBatch(listener);
+        mPermissions.lock();
+        try {
+            for (String path : pathArray) {
+                BatchMember member = new BatchMember(batch, path);
+                mPermissions.getOrCreate(path).addBatchMember(member);
+                batch.members.add(member);
+            }
+            mPermissions.getPermissions(pathArray, current);
+            mPermissionBatches.put(listener, batch);
+
+            final List<PermissionChange> changes = new ArrayList<>(pathArray.length);
+            for (int i = 0; i < pathArray.length; i++) {
+                changes.add(new PermissionChange(pathArray[i], FLAG_DEFAULT, current[i]));
+            }
+            queueDispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPermissionsChange(changes);
+                }
+            });
+        } finally {
+            mPermissions.unlock();
         }
-        return current;
+        dispatchQueued();
+        return listener;
     }
 
-    public OnPermissionChangeListener addPermissionEventListener(String path, OnPermissionChangeListener listener) {
-        int current = FLAG_DEFAULT;
-        mPermissionValueEventListeners.put(path, listener);
+    public void removePermissionsEventListener(OnPermissionsChangeListener listener) {
+        mPermissions.lock();
+        try {
+            for (PermissionBatch batch : mPermissionBatches.removeAll(listener)) {
+                for (BatchMember member : batch.members) {
+                    PathTrie.Node<OnPermissionChangeListener> node = mPermissions.find(member.path);
+                    if (node != null && node.removeBatchMember(member)) {
+                        PathTrie.prune(node);
+                    }
+                }
+            }
+        } finally {
+            mPermissions.unlock();
+        }
+    }
 
-        String nearestAncestor = getNearestCommonAncestor(path, mCachedPermissions.keySet());
-        if (nearestAncestor != null) {
-            current = getPermission(nearestAncestor);
-            mNearestAncestors.put(nearestAncestor, path);
+    //listen to every path at or below prefix with a single listener, called once per refresh with
+    //the changes to the prefix itself and to each path holding a rule below it. paths without a
+    //rule inherit the change of their nearest reported ancestor. the first call reports the
+    //current permissions of those paths, changed from FLAG_DEFAULT.
+    public OnPermissionsChangeListener addSubtreePermissionListener(String prefix, final OnPermissionsChangeListener listener) {
+        final List<PermissionChange> changes = new ArrayList<>();
+        mPermissions.lock();
+        try {
+            PathTrie.Node<OnPermissionChangeListener> root = mPermissions.getOrCreate(prefix);
+            SubtreeWatcher watcher = new SubtreeWatcher(listener, prefix);
+            root.addWatcher(watcher);
+            mSubtreeWatchers.put(listener, watcher);
+
+            List<PathTrie.Node<OnPermissionChangeListener>> nodes = new ArrayList<>();
+            PathTrie.collectRules(root, nodes);
+            if (nodes.isEmpty() || nodes.get(0) != root) {
+                changes.add(new PermissionChange(prefix, FLAG_DEFAULT, PathTrie.getPermission(root)));
+            }
+            for (PathTrie.Node<OnPermissionChangeListener> node : nodes) {
+                changes.add(new PermissionChange(PathTrie.getPath(node), FLAG_DEFAULT, PathTrie.getPermission(node)));
+            }
+            queueDispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPermissionsChange(changes);
+                }
+            });
+        } finally {
+            mPermissions.unlock();
         }
-        listener.onPermissionChange(current);
+        dispatchQueued();
         return listener;
     }
 
-    public void removePermissionEventListener(String path, OnPermissionChangeListener listener) {
-        mPermissionValueEventListeners.remove(path, listener);
+    public void removeSubtreePermissionListener(OnPermissionsChangeListener listener) {
+        mPermissions.lock();
+        try {
+            for (SubtreeWatcher watcher : mSubtreeWatchers.removeAll(listener)) {
+                PathTrie.Node<OnPermissionChangeListener> node = mPermissions.find(watcher.prefix);
+                if (node != null && node.removeWatcher(watcher)) {
+                    PathTrie.prune(node);
+                }
+            }
+        } finally {
+            mPermissions.unlock();
+        }
+    }
 
-        String nca = getNearestCommonAncestor(path, mCachedPermissions.keySet());
-        mNearestAncestors.remove(nca, path);
+    //the listener is called with the current permission first, in order with the refreshes
+    public OnPermissionChangeListener addPermissionEventListener(String path, final OnPermissionChangeListener listener) {
+        mPermissions.lock();
+        try {
+            PathTrie.Node<OnPermissionChangeListener> node = mPermissions.getOrCreate(path);
+            node.addListener(listener);
+            final int current = PathTrie.getPermission(node);
+            queueDispatch(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPermissionChange(current);
+                }
+            });
+        } finally {
+            mPermissions.unlock();
+        }
+        dispatchQueued();
+        return listener;
+    }
 
+    public void removePermissionEventListener(String path, OnPermissionChangeListener listener) {
+        mPermissions.lock();
+        try {
+            PathTrie.Node<OnPermissionChangeListener> node = mPermissions.find(path);
+            if (node != null && node.removeListener(listener)) {
+                PathTrie.prune(node);
+            }
+        } finally {
+            mPermissions.unlock();
+        }
     }
 
     public void removeOnRequestListener(PermissionManager.OnRequestListener requestListener) {
@@ -351,7 +792,7 @@ public class PermissionManager {
         if (request == null)
             throw new IllegalArgumentException("null request");
 
-        DatabaseReference requestRef = mRequestsRef.push();
+        StoreReference requestRef = mRequestsRef.push();
         request.setId(requestRef.getKey());
         requestRef.setValue(request);
     }
@@ -369,6 +810,68 @@ public class PermissionManager {
     public interface OnPermissionChangeListener {
         void onPermissionChange(int current);
 
-        void onCancelled(DatabaseError databaseError);
+        void onCancelled(StoreError databaseError);
+    }
+
+    public interface OnPermissionsChangeListener {
+        void onPermissionsChange(List<PermissionChange> changes);
+
+        void onCancelled(StoreError databaseError);
+    }
+
+    public static class PermissionChange {
+        private final String path;
+        private final int previous;
+        private final int current;
+
+        public PermissionChange(String path, int previous, int current) {
+            this.path = path;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getPrevious() {
+            return previous;
+        }
+
+        public int getCurrent() {
+            return current;
+        }
+    }
+
+    //a batch listener registration
+    static class PermissionBatch {
+        final OnPermissionsChangeListener listener;
+        final List<BatchMember> members = new ArrayList<>();
+
+        PermissionBatch(OnPermissionsChangeListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    //a batch listener registration at one of its paths in the permission trie
+    static class BatchMember {
+        final PermissionBatch batch;
+        final String path;
+
+        BatchMember(PermissionBatch batch, String path) {
+            this.batch = batch;
+            this.path = path;
+        }
+    }
+
+    //a subtree listener registration at its prefix in the permission trie
+    static class SubtreeWatcher {
+        final OnPermissionsChangeListener listener;
+        final String prefix;
+
+        SubtreeWatcher(OnPermissionsChangeListener listener, String prefix) {
+            this.listener = listener;
+            this.prefix = prefix;
+        }
     }
 }
@@ -4,26 +4,20 @@
 
 package examples.baku.io.permissions;
 
-import android.provider.ContactsContract;
-
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import examples.baku.io.permissions.store.StoreReference;
+
 public class PermissionReference {
 
-    private DatabaseReference mPermissionReference;
+    private StoreReference mPermissionReference;
 
     private final Map<String, Integer> permissions = new HashMap<>();    //key is group path
 
-    public PermissionReference(DatabaseReference root, String path) {
+    public PermissionReference(StoreReference root, String path) {
         this.mPermissionReference = root.child(path).child(PermissionManager.KEY_PERMISSIONS);
     }
 
@@ -38,6 +38,11 @@ import examples.baku.io.permissions.examples.ComposeActivity;
 import examples.baku.io.permissions.examples.EmailActivity;
 import examples.baku.io.permissions.messenger.Messenger;
 import examples.baku.io.permissions.messenger.Message;
+import examples.baku.io.permissions.store.FirebaseStore;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreValueListener;
 
 public class PermissionService extends Service {
 
@@ -61,11 +66,12 @@ public class PermissionService extends Service {
     NotificationManager mNotificationManager;
 
     FirebaseDatabase mFirebaseDB;
+    FirebaseStore mStore;
     DatabaseReference mDevicesReference;
     DatabaseReference mRequestsReference;
 
 
-    DatabaseReference mMessengerReference;
+    StoreReference mMessengerReference;
     Messenger mMessenger;
 
     DatabaseReference mPermissionsReference;
@@ -116,11 +122,12 @@ public class PermissionService extends Service {
 
 
         mFirebaseDB = FirebaseDatabase.getInstance();
+        mStore = new FirebaseStore(mFirebaseDB);
         mDevicesReference = mFirebaseDB.getReference("_devices");
         mRequestsReference = mFirebaseDB.getReference("requests");
 
         mPermissionsReference = mFirebaseDB.getReference("permissions");
-        mPermissionManager = new PermissionManager(mFirebaseDB.getReference(), mDeviceId);
+        mPermissionManager = new PermissionManager(mStore.getReference(), mDeviceId);
 
         mPermissionManager.addOnRequestListener(new PermissionManager.OnRequestListener() {
             @Override
@@ -213,6 +220,10 @@ public class PermissionService extends Service {
         return mFirebaseDB;
     }
 
+    public FirebaseStore getStore() {
+        return mStore;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return new PermissionServiceBinder();
@@ -248,10 +259,10 @@ public class PermissionService extends Service {
 
     public void initDeviceBlessing() {
 
-        final DatabaseReference deviceBlessingRef = mFirebaseDB.getReference(KEY_BLESSINGS).child(mDeviceId);
-        deviceBlessingRef.addListenerForSingleValueEvent(new ValueEventListener() {
+        final StoreReference deviceBlessingRef = mStore.getReference(KEY_BLESSINGS).child(mDeviceId);
+        deviceBlessingRef.addSingleValueListener(new StoreValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(StoreSnapshot dataSnapshot) {
                 if (dataSnapshot.exists()) {
                     mDeviceBlessing = new Blessing(dataSnapshot);
                 } else {
@@ -263,7 +274,7 @@ public class PermissionService extends Service {
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(StoreError databaseError) {
 
             }
         });
@@ -274,7 +285,7 @@ public class PermissionService extends Service {
     }
 
     public void initMessenger() {
-        mMessengerReference = mFirebaseDB.getReference("messages");
+        mMessengerReference = mStore.getReference("messages");
         mMessenger = new Messenger(mDeviceId, mMessengerReference);
 
         mMessenger.on("disassociate", new Messenger.Listener() {
@@ -0,0 +1,209 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable, compiled form of a blessing's rules.
+ *
+ * Nodes are laid out breadth first in flat arrays, with the children of a node stored
+ * contiguously and sorted by segment hash. Node 0 is the rules root. Each node keeps its own
+ * permission mask and the mask inherited from its ancestors, so a permission check is a single
+ * walk over the path string that neither touches the snapshot nor allocates.
+ */
+final class RuleTree {
+
+    static final int NO_NODE = -1;
+
+    static final RuleTree EMPTY = new Builder().build();
+
+    private final String[] mSegments;
+    private final int[] mHashes;
+    private final int[] mParents;
+    private final int[] mDepths;
+    private final int[] mFirstChildren;
+    private final int[] mChildCounts;
+    private final int[] mPermissions;
+    private final int[] mInheritedPermissions;
+
+    private RuleTree(int size) {
+        mSegments = new String[size];
+        mHashes = new int[size];
+        mParents = new int[size];
+        mDepths = new int[size];
+        mFirstChildren = new int[size];
+        mChildCounts = new int[size];
+        mPermissions = new int[size];
+        mInheritedPermissions = new int[size];
+    }
+
+    int size() {
+        return mSegments.length;
+    }
+
+    String getSegment(int node) {
+        return mSegments[node];
+    }
+
+    int getParent(int node) {
+        return mParents[node];
+    }
+
+    int getDepth(int node) {
+        return mDepths[node];
+    }
+
+    int getFirstChild(int node) {
+        return mFirstChildren[node];
+    }
+
+    int getChildCount(int node) {
+        return mChildCounts[node];
+    }
+
+    //mask set at this node only
+    int getPermissions(int node) {
+        return mPermissions[node];
+    }
+
+    //mask set at this node or any of its ancestors
+    int getInheritedPermissions(int node) {
+        return mInheritedPermissions[node];
+    }
+
+    String getPath(int node) {
+        StringBuilder builder = new StringBuilder(mSegments[node]);
+        for (int current = mParents[node]; current > 0; current = mParents[current]) {
+            builder.insert(0, PathTrie.SEPARATOR).insert(0, mSegments[current]);
+        }
+        return builder.toString();
+    }
+
+    int getHash(int node) {
+        return mHashes[node];
+    }
+
+    int findChild(int node, String path, int start, int end) {
+        int count = mChildCounts[node];
+        if (count == 0) {
+            return NO_NODE;
+        }
+        int h = PathTrie.hash(path, start, end);
+        int low = mFirstChildren[node];
+        int high = low + count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mHashes[mid] < h) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int length = end - start;
+        int last = mFirstChildren[node] + count;
+        for (int i = low; i < last && mHashes[i] == h; i++) {
+            if (mSegments[i].length() == length && path.regionMatches(start, mSegments[i], 0, length)) {
+                return i;
+            }
+        }
+        return NO_NODE;
+    }
+
+    //deepest node along path
+    int findNearest(String path) {
+        int node = 0;
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int end = PathTrie.segmentEnd(path, start);
+            int child = findChild(node, path, start, end);
+            if (child == NO_NODE) {
+                break;
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    int getPermissionAt(String path) {
+        return mInheritedPermissions[findNearest(path)];
+    }
+
+    static class Builder {
+        private final List<String> mSegments = new ArrayList<>();
+        private final List<Integer> mPermissions = new ArrayList<>();
+        private final List<List<Integer>> mChildren = new ArrayList<>();
+
+        Builder() {
+            add("", PermissionManager.FLAG_DEFAULT);
+        }
+
+        static int getRoot() {
+            return 0;
+        }
+
+        void setPermissions(int node, int permissions) {
+            mPermissions.set(node, permissions);
+        }
+
+        //returns the new node, to be used as the parent of its own children
+        int addChild(int parent, String segment, int permissions) {
+            int node = add(segment, permissions);
+            mChildren.get(parent).add(node);
+            return node;
+        }
+
+        private int add(String segment, int permissions) {
+            mSegments.add(segment);
+            mPermissions.add(permissions);
+            mChildren.add(new ArrayList<Integer>());
+            return mSegments.size() - 1;
+        }
+
+        RuleTree build() {
+            RuleTree tree = new RuleTree(mSegments.size());
+            int[] queue = new int[mSegments.size()];
+            queue[0] = 0;
+            tree.mSegments[0] = mSegments.get(0);
+            tree.mParents[0] = NO_NODE;
+            tree.mPermissions[0] = mPermissions.get(0);
+            tree.mInheritedPermissions[0] = mPermissions.get(0);
+
+            int tail = 1;
+            for (int head = 0; head < tail; head++) {
+                List<Integer> children = new ArrayList<>(mChildren.get(queue[head]));
+                Collections.sort(children, mHashOrder);
+                tree.mFirstChildren[head] = tail;
+                tree.mChildCounts[head] = children.size();
+                for (int child : children) {
+                    String segment = mSegments.get(child);
+                    queue[tail] = child;
+                    tree.mSegments[tail] = segment;
+                    tree.mHashes[tail] = segment.hashCode();
+                    tree.mParents[tail] = head;
+                    tree.mDepths[tail] = tree.mDepths[head] + 1;
+                    tree.mPermissions[tail] = mPermissions.get(child);
+                    tree.mInheritedPermissions[tail] = tree.mInheritedPermissions[head] | mPermissions.get(child);
+                    tail++;
+                }
+            }
+            return tree;
+        }
+
+        private final Comparator<Integer> mHashOrder = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int l = mSegments.get(lhs).hashCode();
+                int r = mSegments.get(rhs).hashCode();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        };
+    }
+}
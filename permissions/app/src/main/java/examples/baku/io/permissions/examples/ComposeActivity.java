@@ -10,7 +10,9 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.TextInputLayout;
 import android.support.v7.app.AppCompatActivity;
@@ -24,23 +26,22 @@ import android.view.View;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import examples.baku.io.permissions.PermissionManager;
 import examples.baku.io.permissions.discovery.DeviceData;
 import examples.baku.io.permissions.PermissionService;
 import examples.baku.io.permissions.R;
 import examples.baku.io.permissions.discovery.DevicePickerActivity;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.synchronization.OperationEngine;
 import examples.baku.io.permissions.synchronization.SyncText;
 
 public class ComposeActivity extends AppCompatActivity implements ServiceConnection {
@@ -54,8 +55,8 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
     private String mDeviceId;
     private String mId;
     private PermissionService mPermissionService;
-    private DatabaseReference mMessageRef;
-    private DatabaseReference mSyncedMessageRef;
+    private StoreReference mMessageRef;
+    private StoreReference mSyncedMessageRef;
 
     String sourceId;
 
@@ -73,11 +74,20 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
 
     Map<String, Integer> permissions = new HashMap<>();
 
-    HashMap<String, SyncText> syncTexts = new HashMap<>();
+    //typing sends one patch per pause, and at least one every half second
+    static final long TEXT_IDLE_MILLIS = 150;
+    static final long TEXT_MAX_LATENCY_MILLIS = 500;
+    HashMap<String, SyncTextField> syncTexts = new HashMap<>();
 
-    HashMap<String, ValueEventListener> listeners = new HashMap<>();
-    HashMap<String, DataSnapshot> mSnapshots = new HashMap<>();
-    DataSnapshot currentSnapshot;
+    //synced fields merge remote edits on the ui thread, between the user's edits
+    private final Executor mUiExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
     String original;
 
@@ -207,7 +217,7 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
                 mPath = "documents/" + mDeviceId + "/emails/messages/" + mId;
             }
 
-            mMessageRef = mPermissionService.getFirebaseDB().getReference(mPath);
+            mMessageRef = mPermissionService.getStore().getReference(mPath);
             mSyncedMessageRef = mMessageRef.child("syncedValues");
             mPermissionService.getPermissionManager().addPermissionEventListener(mPath, messagePermissionListener);
             wrapTextField(mToLayout, "to");
@@ -229,7 +239,7 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(StoreError databaseError) {
 
         }
     };
@@ -268,61 +278,93 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(StoreError databaseError) {
 
             }
         });
     }
 
     void unlinkTextField(String key) {
-        if (syncTexts.containsKey(key)) {
-            syncTexts.get(key).unlink();
+        SyncTextField field = syncTexts.remove(key);
+        if (field != null) {
+            field.unlink();
         }
     }
 
     void linkTextField(final EditText edit, final String key) {
-        final SyncText syncText = new SyncText(mSyncedMessageRef.child(key), mMessageRef.child(key));
-        syncTexts.put(key, syncText);
+        unlinkTextField(key);   //permission changes relink the field
+        SyncText syncText = new SyncText(mSyncedMessageRef.child(key), mMessageRef.child(key),
+                new OperationEngine(), mUiExecutor);
+        syncText.setDebounce(TEXT_IDLE_MILLIS, TEXT_MAX_LATENCY_MILLIS);
+        syncTexts.put(key, new SyncTextField(edit, syncText));
+    }
 
-        syncText.setOnTextChangeListener(new SyncText.OnTextChangeListener() {
-            @Override
-            public void onTextChange(final String currentText) {
-                final int sel = Math.min(edit.getSelectionStart(), currentText.length());
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        edit.setText(currentText);
-                        if (sel > -1) {
-                            edit.setSelection(sel);
-                        }
-                    }
-                });
-            }
-        });
+    //keeps an EditText and a SyncText in step, exchanging the spans edited on either side
+    //rather than whole texts. the SyncText calls back on the ui thread
+    class SyncTextField implements TextWatcher, SyncText.OnTextEditListener {
+        final EditText mEdit;
+        final SyncText mSyncText;
+        boolean mApplyingRemote;    //only used on the ui thread
+
+        SyncTextField(EditText edit, SyncText syncText) {
+            mEdit = edit;
+            mSyncText = syncText;
+            syncText.setOnTextEditListener(this);
+            edit.addTextChangedListener(this);
+        }
 
-        edit.addTextChangedListener(new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        void unlink() {
+            mEdit.removeTextChangedListener(this);
+            mSyncText.unlink();
+        }
 
+        @Override
+        public void onTextReset(String currentText) {
+            int sel = Math.min(mEdit.getSelectionStart(), currentText.length());
+            mApplyingRemote = true;
+            mEdit.setText(currentText);
+            mApplyingRemote = false;
+            if (sel > -1) {
+                mEdit.setSelection(sel);
             }
+        }
 
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {
-                syncText.update(s.toString());
+        @Override
+        public void onTextEdit(int offset, int removedLength, String inserted) {
+            Editable text = mEdit.getText();
+            if (offset + removedLength > text.length()) {   //out of step, send the whole text instead
+                Log.e("ComposeActivity", "remote edit outside the text");
+                mSyncText.update(text.toString());
+                return;
             }
+            mApplyingRemote = true; //the selection moves with the replaced span
+            text.replace(offset, offset + removedLength, inserted);
+            mApplyingRemote = false;
+        }
 
-            @Override
-            public void afterTextChanged(Editable s) {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+
+        }
 
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (!mApplyingRemote) {
+                mSyncText.edit(start, before, s.subSequence(start, start + count).toString());
             }
-        });
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         unlinkTextField("to");
-        unlinkTextField("form");
+        unlinkTextField("from");
         unlinkTextField("subject");
         unlinkTextField("message");
         if (mPermissionService != null) {
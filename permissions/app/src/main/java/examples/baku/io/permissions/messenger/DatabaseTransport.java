@@ -0,0 +1,374 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import examples.baku.io.permissions.store.StoreChildListener;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreException;
+import examples.baku.io.permissions.store.StoreMutableData;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreTransaction;
+
+/**
+ * Messages written as children of a store location, and deleted by their target once received.
+ * Messages wait in the store until their target connects.
+ *
+ * Messages sent within the batch window are written together, with the deletes of the messages
+ * consumed in the meantime, as one multi-location update.
+ *
+ * A message to a group is written once, to the group's inbox, whatever the group's size. Every
+ * member reads the inbox and marks what it read as delivered. The member completing the marks
+ * of the group deletes the message. Messages sent before a member joined are marked, not
+ * delivered. Members record the push key of their join, and senders key group messages after the
+ * join of every member they know of, so a clock behind a member's doesn't hide messages from it.
+ *
+ * A member that stays in a group without reading would keep its messages forever, so a message
+ * is deleted with its marks GROUP_MESSAGE_TIMEOUT_MILLIS after its first mark, by the member that
+ * made it, or by the next member marking it after that.
+ */
+public class DatabaseTransport implements MessengerTransport, StoreChildListener {
+
+    static final String KEY_TARGET = "target";
+
+    static final String KEY_GROUPS = "_groups";    //<group, <member id, join key>>
+    static final String KEY_GROUP_MESSAGES = "_group_messages";    //<group, <push key, message>>
+    static final String KEY_GROUP_DELIVERED = "_group_delivered";  //<group, <push key, <member id, true>>>
+    static final String KEY_FIRST_MARK = "_first_mark";  //client time of a message's first mark, in milliseconds
+
+    //senders have given up on the acks of older group messages
+    static final long GROUP_MESSAGE_TIMEOUT_MILLIS = Messenger.DEFAULT_ACK_TIMEOUT_MILLIS;
+
+    public static final long BATCH_IMMEDIATE = -1;
+
+    private String mId;
+    private StoreReference mReference;
+    private Receiver mReceiver;
+
+    private StoreReference mGroupsReference;
+    //<group, <member, join key>> updated group by group
+    private final Map<String, Map<String, String>> mGroups = new ConcurrentHashMap<>();
+    //<group, inbox> of the groups joined
+    private final Map<String, GroupInbox> mInboxes = new ConcurrentHashMap<>();
+
+    private volatile long mBatchWindow = 0;
+    //<path, message> writes waiting for the next flush, null for consumed messages
+    private final Map<String, Object> mPendingWrites = new LinkedHashMap<>();
+    private boolean mFlushScheduled;    //guarded by mPendingWrites
+    private Handler mHandler;   //created on the first delayed flush, guarded by this
+
+    public DatabaseTransport(StoreReference reference) {
+        this.mReference = reference;
+        this.mGroupsReference = mReference.child(KEY_GROUPS);
+    }
+
+    @Override
+    public void connect(String id, Receiver receiver) {
+        this.mId = id;
+        this.mReceiver = receiver;
+        this.mReference.orderByChild(KEY_TARGET).equalTo(mId).addChildListener(this);
+        this.mGroupsReference.addChildListener(mGroupsListener);
+    }
+
+    @Override
+    public boolean send(Message message) {
+        String target = message.getTarget();
+        Map<String, String> members = mGroups.get(target);
+        if(members != null){    //written once, to the group's inbox
+            String key = mReference.child(KEY_GROUP_MESSAGES).child(target).push().getKey();
+            String latestJoin = "";
+            for(String joinKey : members.values()){
+                if(joinKey.compareTo(latestJoin) > 0){
+                    latestJoin = joinKey;
+                }
+            }
+            if(key.compareTo(latestJoin) <= 0){ //this clock is behind a member's, sort after its join
+                key = latestJoin + key;
+            }
+            write(KEY_GROUP_MESSAGES + "/" + target + "/" + key, message);
+        }else{
+            write(message.getId(), message);
+        }
+        return true;    //the store keeps writes made offline until it reconnects
+    }
+
+    //write messages sent, and delete messages consumed, within this many milliseconds of each
+    //other in a single update. 0 writes once the current main looper message has been handled,
+    //BATCH_IMMEDIATE writes each one as it happens.
+    public void setBatchWindow(long millis){
+        this.mBatchWindow = millis;
+        if(millis < 0){
+            flush();
+        }
+    }
+
+    public long getBatchWindow(){
+        return mBatchWindow;
+    }
+
+    //path is relative to the messenger's location
+    private void write(String path, Message message){
+        synchronized (mPendingWrites){
+            mPendingWrites.put(path, message);
+            if(mBatchWindow >= 0 && mFlushScheduled){
+                return;
+            }
+            mFlushScheduled = mBatchWindow >= 0;
+        }
+        if(mBatchWindow < 0){
+            flush();
+        }else{
+            getHandler().postDelayed(mFlushRunnable, mBatchWindow);
+        }
+    }
+
+    private synchronized Handler getHandler(){
+        if(mHandler == null){
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        return mHandler;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    //send every pending write now, as one update
+    public void flush(){
+        Map<String, Object> pending;
+        synchronized (mPendingWrites){
+            mFlushScheduled = false;    //a callback still posted will find nothing to flush
+            if(mPendingWrites.isEmpty()){
+                return;
+            }
+            pending = new HashMap<>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+        mReference.updateChildren(pending);
+    }
+
+    @Override
+    public void join(String group){
+        if(mInboxes.containsKey(group)){
+            return;
+        }
+        GroupInbox inbox = new GroupInbox(group);
+        mGroupsReference.child(group).child(mId).setValue(inbox.mJoinKey);
+        mInboxes.put(group, inbox);
+        inbox.open();
+    }
+
+    @Override
+    public void leave(String group){
+        mGroupsReference.child(group).child(mId).removeValue();
+        GroupInbox inbox = mInboxes.remove(group);
+        if(inbox != null){
+            inbox.close();
+        }
+    }
+
+    private final StoreChildListener mGroupsListener = new StoreChildListener() {
+        @Override
+        public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
+            updateGroup(dataSnapshot);
+        }
+
+        @Override
+        public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
+            updateGroup(dataSnapshot);
+        }
+
+        @Override
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {
+            mGroups.remove(dataSnapshot.getKey());
+        }
+
+        @Override
+        public void onCancelled(StoreError databaseError) {
+            databaseError.toException().printStackTrace();
+        }
+    };
+
+    private void updateGroup(StoreSnapshot group){
+        Map<String, String> members = new HashMap<>();
+        for(StoreSnapshot member : group.getChildren()){
+            Object joinKey = member.getValue();
+            members.put(member.getKey(), joinKey instanceof String ? (String) joinKey : "");
+        }
+        mGroups.put(group.getKey(), Collections.unmodifiableMap(members));
+    }
+
+    //messages of a joined group, read from the group's inbox
+    private class GroupInbox implements StoreChildListener {
+        final String mGroup;
+        final String mJoinKey;  //push keys of messages sent after joining sort after it
+        final StoreReference mMessagesReference;
+
+        GroupInbox(String group){
+            this.mGroup = group;
+            this.mMessagesReference = mReference.child(KEY_GROUP_MESSAGES).child(group);
+            this.mJoinKey = mMessagesReference.push().getKey();
+        }
+
+        void open(){
+            mMessagesReference.addChildListener(this);
+        }
+
+        @Override
+        public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
+            String key = dataSnapshot.getKey();
+            if(key.compareTo(mJoinKey) > 0){
+                Message message = null;
+                try{
+                    message = dataSnapshot.getValue(Message.class);
+                }catch(StoreException e){
+                    e.printStackTrace();
+                }
+                if(message != null && !mId.equals(message.getSource())){
+                    mReceiver.onMessage(message);
+                }
+            }
+            markDelivered(mGroup, key);
+        }
+
+        @Override
+        public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
+
+        }
+
+        @Override
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {
+
+        }
+
+        @Override
+        public void onCancelled(StoreError databaseError) {
+            databaseError.toException().printStackTrace();
+        }
+
+        void close(){
+            mMessagesReference.removeListener(this);
+        }
+    }
+
+    //mark a group message read by this member, deleting it once every member has, or once it
+    //timed out
+    private void markDelivered(final String group, final String key){
+        final long now = System.currentTimeMillis();
+        mReference.child(KEY_GROUP_DELIVERED).child(group).child(key).runTransaction(new StoreTransaction() {
+            @Override
+            public boolean doTransaction(StoreMutableData currentData) {
+                currentData.child(mId).setValue(true);
+                if(currentData.child(KEY_FIRST_MARK).getValue() == null){
+                    currentData.child(KEY_FIRST_MARK).setValue(now);
+                }
+                return true;
+            }
+
+            @Override
+            public void onComplete(StoreError databaseError, boolean success, StoreSnapshot dataSnapshot) {
+                if(!success){
+                    return;
+                }
+                Long firstMark = null;
+                try{
+                    firstMark = dataSnapshot.child(KEY_FIRST_MARK).getValue(Long.class);
+                }catch(StoreException e){
+                    e.printStackTrace();
+                }
+                if(firstMark != null && now - firstMark >= GROUP_MESSAGE_TIMEOUT_MILLIS){
+                    deleteGroupMessage(group, key);
+                    return;
+                }
+                if(isDelivered(group, dataSnapshot)){
+                    deleteGroupMessage(group, key);
+                }else if(firstMark != null && firstMark == now){  //this member made the first mark
+                    getHandler().postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            deleteGroupMessage(group, key);
+                        }
+                    }, GROUP_MESSAGE_TIMEOUT_MILLIS);
+                }
+            }
+        });
+    }
+
+    //whether every member of group marked the message
+    private boolean isDelivered(String group, StoreSnapshot marks){
+        Map<String, String> members = mGroups.get(group);
+        if(members == null){    //not known yet, leave it to the members reading later
+            return false;
+        }
+        for(String member : members.keySet()){
+            if(!marks.hasChild(member)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //with its marks, deleting nothing if it was deleted already
+    private void deleteGroupMessage(String group, String key){
+        write(KEY_GROUP_MESSAGES + "/" + group + "/" + key, null);
+        write(KEY_GROUP_DELIVERED + "/" + group + "/" + key, null);
+    }
+
+    @Override
+    public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
+        Message message = null;
+        try{
+            message = dataSnapshot.getValue(Message.class);
+
+        }catch(StoreException e){
+            e.printStackTrace();
+        }
+
+        if(message!= null){
+            mReceiver.onMessage(message);
+        }
+
+        //remove from database, with the next batch
+        write(dataSnapshot.getKey(), null);
+    }
+
+    @Override
+    public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
+
+    }
+
+    @Override
+    public void onChildRemoved(StoreSnapshot dataSnapshot) {
+
+    }
+
+    @Override
+    public void onCancelled(StoreError databaseError) {
+        databaseError.toException().printStackTrace();
+    }
+
+    @Override
+    public void disconnect(){
+        mReference.removeListener(this);
+        mGroupsReference.removeListener(mGroupsListener);
+        for(GroupInbox inbox : mInboxes.values()){
+            inbox.close();
+        }
+        mInboxes.clear();
+        flush();
+    }
+}
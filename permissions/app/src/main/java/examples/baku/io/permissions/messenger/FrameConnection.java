@@ -0,0 +1,225 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Socket channel carrying {@link MessageCodec} frames, read on a {@link SelectorLoop}.
+ *
+ * Frames can be sent from any thread. They are queued, keeping their order, and written by the
+ * loop, so a sender never blocks on, or touches, the socket.
+ */
+final class FrameConnection implements SelectorLoop.Selectable {
+
+    private static final String TAG = FrameConnection.class.getSimpleName();
+
+    interface Handler {
+        //called on the loop. payload is only valid during the call
+        void onFrame(FrameConnection connection, byte kind, ByteBuffer payload);
+
+        void onClosed(FrameConnection connection);
+    }
+
+    static final int READ_BUFFER_LENGTH = 8192;
+
+    private final SelectorLoop mLoop;
+    private final SocketChannel mChannel;
+    private final Handler mHandler;
+
+    //loop confined
+    private SelectionKey mKey;
+    private ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_LENGTH);
+    private String mId;     //messenger on the other end, once known
+
+    //frames waiting for the socket, guarded by itself with the flags
+    private final ArrayDeque<ByteBuffer> mWrites = new ArrayDeque<>();
+    private boolean mConnected;
+    private boolean mClosing;   //close once mWrites is written
+    private boolean mClosed;
+
+    FrameConnection(SelectorLoop loop, SocketChannel channel, Handler handler){
+        this.mLoop = loop;
+        this.mChannel = channel;
+        this.mHandler = handler;
+    }
+
+    //connect to remote, or start reading an accepted channel if remote is null
+    void start(final SocketAddress remote){
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    mChannel.configureBlocking(false);
+                    mChannel.socket().setTcpNoDelay(true);
+                    if(remote == null || mChannel.connect(remote)){
+                        mKey = mChannel.register(mLoop.getSelector(), 0, FrameConnection.this);
+                        onConnected();
+                    }else{
+                        mKey = mChannel.register(mLoop.getSelector(), SelectionKey.OP_CONNECT, FrameConnection.this);
+                    }
+                }catch(IOException e){
+                    Log.e(TAG, "couldn't start the connection", e);
+                    close();
+                }
+            }
+        });
+    }
+
+    String getId(){
+        return mId;
+    }
+
+    void setId(String id){
+        this.mId = id;
+    }
+
+    void send(ByteBuffer frame){
+        synchronized (mWrites){
+            if(mClosed || mClosing){
+                return;
+            }
+            boolean idle = mWrites.isEmpty();
+            mWrites.add(frame);
+            if(!mConnected || !idle){   //written once connected, or with the frames before it
+                return;
+            }
+        }
+        mLoop.execute(mEnableWrite);
+    }
+
+    //true once the channel connected, even after it closed
+    boolean isConnected(){
+        synchronized (mWrites){
+            return mConnected;
+        }
+    }
+
+    //close after writing the frames sent so far
+    void shutdown(){
+        synchronized (mWrites){
+            mClosing = true;
+        }
+        mLoop.execute(mEnableWrite);
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if(key.isConnectable()){
+            mChannel.finishConnect();
+            onConnected();
+        }
+        if(key.isValid() && key.isReadable()){
+            read();
+        }
+        if(key.isValid() && key.isWritable()){
+            write();
+        }
+    }
+
+    private void onConnected(){
+        boolean pending;
+        synchronized (mWrites){
+            mConnected = true;
+            pending = !mWrites.isEmpty() || mClosing;
+        }
+        mKey.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void read() throws IOException {
+        if(mChannel.read(mReadBuffer) < 0){
+            close();
+            return;
+        }
+        mReadBuffer.flip();
+        int needed = 0;
+        while(mReadBuffer.remaining() >= MessageCodec.HEADER_LENGTH){
+            int start = mReadBuffer.position();
+            int length = mReadBuffer.getInt(start);
+            if(length < 1 || length > MessageCodec.MAX_FRAME_LENGTH){
+                throw new IOException("invalid frame length " + length);
+            }
+            if(mReadBuffer.remaining() < MessageCodec.HEADER_LENGTH + length){
+                needed = MessageCodec.HEADER_LENGTH + length;
+                break;
+            }
+            int end = start + MessageCodec.HEADER_LENGTH + length;
+            ByteBuffer payload = mReadBuffer.duplicate();
+            payload.position(start + MessageCodec.HEADER_LENGTH + 1);
+            payload.limit(end);
+            mReadBuffer.position(end);
+            try{
+                mHandler.onFrame(this, mReadBuffer.get(start + MessageCodec.HEADER_LENGTH), payload.slice());
+            }catch(IllegalArgumentException e){    //malformed frames are skipped
+                Log.w(TAG, "skipped a malformed frame", e);
+            }
+            if(mClosed){
+                return;
+            }
+        }
+        mReadBuffer.compact();
+        if(needed > mReadBuffer.capacity()){    //grow for a long frame
+            ByteBuffer grown = ByteBuffer.allocate(needed);
+            mReadBuffer.flip();
+            grown.put(mReadBuffer);
+            mReadBuffer = grown;
+        }
+    }
+
+    private void write() throws IOException {
+        synchronized (mWrites){
+            ByteBuffer frame;
+            while((frame = mWrites.peek()) != null){
+                mChannel.write(frame);
+                if(frame.hasRemaining()){
+                    return;
+                }
+                mWrites.poll();
+            }
+            if(!mClosing){
+                mKey.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+        }
+        close();
+    }
+
+    private final Runnable mEnableWrite = new Runnable() {
+        @Override
+        public void run() {
+            if(mKey != null && mKey.isValid() && (mKey.interestOps() & SelectionKey.OP_CONNECT) == 0){
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+    //only called on the loop
+    @Override
+    public void close(){
+        synchronized (mWrites){
+            if(mClosed){
+                return;
+            }
+            mClosed = true;
+            mWrites.clear();
+        }
+        if(mKey != null){
+            mKey.cancel();
+        }
+        try{
+            mChannel.close();
+        }catch(IOException e){
+            Log.w(TAG, "couldn't close the channel", e);
+        }
+        mHandler.onClosed(this);
+    }
+}
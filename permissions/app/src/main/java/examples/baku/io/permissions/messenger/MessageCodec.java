@@ -0,0 +1,125 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames of the socket transport: a 4 byte length, then a kind byte and its fields. Strings are a
+ * 4 byte UTF-8 length, -1 for null, then the bytes. Malformed frames throw
+ * IllegalArgumentException.
+ */
+final class MessageCodec {
+
+    static final byte KIND_HELLO = 0;   //id of the messenger on the connection
+    static final byte KIND_MESSAGE = 1;
+    static final byte KIND_JOIN = 2;    //group
+    static final byte KIND_LEAVE = 3;   //group
+
+    static final int HEADER_LENGTH = 4;
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private MessageCodec(){}
+
+    //frame of a kind carrying a single string
+    static ByteBuffer encode(byte kind, String value){
+        byte[] bytes = getBytes(value);
+        ByteBuffer frame = allocate(kind, stringLength(bytes));
+        putString(frame, bytes);
+        frame.flip();
+        return frame;
+    }
+
+    static ByteBuffer encode(Message message){
+        byte[][] fields = {
+                getBytes(message.getId()),
+                getBytes(message.getParent()),
+                getBytes(message.getType()),
+                getBytes(message.getTarget()),
+                getBytes(message.getSource()),
+                getBytes(message.getMessage()),
+        };
+        int length = 1;     //callback flag
+        for(byte[] field : fields){
+            length += stringLength(field);
+        }
+        ByteBuffer frame = allocate(KIND_MESSAGE, length);
+        for(byte[] field : fields){
+            putString(frame, field);
+        }
+        frame.put((byte) (message.isCallback() ? 1 : 0));
+        frame.flip();
+        return frame;
+    }
+
+    //frame of kind around a payload read by FrameConnection, for forwarding
+    static ByteBuffer encode(byte kind, ByteBuffer payload){
+        ByteBuffer frame = allocate(kind, payload.remaining());
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    //payload of a KIND_MESSAGE frame, after its kind
+    static Message decodeMessage(ByteBuffer payload){
+        try{
+            Message message = new Message();
+            message.setId(getString(payload));
+            message.setParent(getString(payload));
+            message.setType(getString(payload));
+            message.setTarget(getString(payload));
+            message.setSource(getString(payload));
+            message.setMessage(getString(payload));
+            message.setCallback(payload.get() != 0);
+            return message;
+        }catch(BufferUnderflowException e){
+            throw new IllegalArgumentException("truncated message", e);
+        }
+    }
+
+    static String getString(ByteBuffer payload){
+        int length = payload.getInt();
+        if(length < 0){
+            return null;
+        }
+        if(length > payload.remaining()){
+            throw new IllegalArgumentException("truncated string of length " + length);
+        }
+        String result = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return result;
+    }
+
+    private static ByteBuffer allocate(byte kind, int fieldsLength){
+        int length = 1 + fieldsLength;
+        if(length > MAX_FRAME_LENGTH){
+            throw new IllegalArgumentException("frame of " + length + " bytes is too long");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putInt(length);
+        frame.put(kind);
+        return frame;
+    }
+
+    private static byte[] getBytes(String value){
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringLength(byte[] bytes){
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putString(ByteBuffer frame, byte[] bytes){
+        if(bytes == null){
+            frame.putInt(-1);
+        }else{
+            frame.putInt(bytes.length);
+            frame.put(bytes);
+        }
+    }
+}
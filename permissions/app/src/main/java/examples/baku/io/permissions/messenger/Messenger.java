@@ -4,86 +4,121 @@
 
 package examples.baku.io.permissions.messenger;
 
-import android.provider.ContactsContract;
-import android.widget.NumberPicker;
-
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
-import java.util.HashMap;
-import java.util.Iterator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import examples.baku.io.permissions.store.StoreReference;
 
 /**
  * Created by phamilton on 6/28/16.
  *
  * !!!!!!!!!FOR PROTOTYPING ONLY!!!!!!!
- * Messaging on top of Firebase real-time database.
+ * Events and their responses between devices, carried by a {@link MessengerTransport}.
  * Handles single target messaging only.
- * Stand in for something like socket.io.
+ * Stand in for something like socket.io: {@link SocketTransport} delivers directly through a
+ * relay, {@link DatabaseTransport} through the Firebase real-time database.
+ *
+ * An Ack waits for its response until the emit's timeout, and at most MAX_PENDING_ACKS are kept,
+ * the oldest being dropped first. Either way, the emit's Failure is told why.
  */
-public class Messenger implements ChildEventListener {
+public class Messenger implements MessengerTransport.Receiver {
 
-    static final String KEY_TARGET = "target";
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30000;
+    public static final long NO_TIMEOUT = 0;
+    static final int MAX_PENDING_ACKS = 1024;
 
-    static final String KEY_GROUPS = "_groups";
+    //why an Ack will never be called
+    public static final int FAILURE_TIMEOUT = 0;
+    public static final int FAILURE_EVICTED = 1;    //more than MAX_PENDING_ACKS were pending
+    public static final int FAILURE_DISCONNECTED = 2;
 
-    private String mId;
-    private DatabaseReference mReference;
+    //ack timeouts of every messenger
+    private static final TimerWheel sAckTimer = new TimerWheel("Messenger-acks");
 
-    //hacky client side grouping
-    private DatabaseReference mGroupsReference;
-    private DataSnapshot mGroups;
+    private String mId;
+    private MessengerTransport mTransport;
+    private volatile long mAckTimeout = DEFAULT_ACK_TIMEOUT_MILLIS;
+
+    final private Map<String, Listener> mListeners = new ConcurrentHashMap<>();
+    //<message id, ack waiting for the response>. one segment, since the cache splits its size
+    //between segments and would evict from a full one while the table is under MAX_PENDING_ACKS
+    final private Cache<String, PendingAck> mCallbacks = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumSize(MAX_PENDING_ACKS)
+            .removalListener(new RemovalListener<String, PendingAck>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, PendingAck> notification) {
+                    if(notification.wasEvicted()){
+                        notification.getValue().fail(FAILURE_EVICTED);
+                    }
+                }
+            })
+            .build();
 
-    final private Map<String, Listener> mListeners = new HashMap<>();
-    final private Map<String, Ack> mCallbacks = new HashMap<>();
+    public Messenger(String id, StoreReference reference) {
+        this(id, new DatabaseTransport(reference));
+    }
 
-    public Messenger(String id, DatabaseReference reference) {
+    public Messenger(String id, MessengerTransport transport) {
         this.mId = id;
-        this.mReference = reference;
-        this.mReference.orderByChild(KEY_TARGET).equalTo(mId).addChildEventListener(this);
-
-        this.mGroupsReference = mReference.child(KEY_GROUPS);
-        this.mGroupsReference.addValueEventListener(groupsListener);
+        this.mTransport = transport;
+        this.mTransport.connect(mId, this);
     }
 
     public Emitter to(final String target){
         return new Emitter() {
             @Override
-            public void emit(String event, String msg, Ack callback) {
+            public void emit(String event, String msg, Ack callback, long timeoutMillis, Failure failure) {
                 if(event == null) throw new IllegalArgumentException("event argument can't be null.");
+                if(timeoutMillis < 0) throw new IllegalArgumentException("negative timeout " + timeoutMillis);
 
                 Message message = new Message(event, msg);
                 message.setSource(mId);
+                message.setTarget(target);
 
                 if(callback != null){
-                    mCallbacks.put(message.getId(), callback);
+                    final String id = message.getId();
+                    PendingAck pending = new PendingAck(callback, failure);
+                    mCallbacks.put(id, pending);    //before the timeout is scheduled, so it finds the ack
+                    if(timeoutMillis != NO_TIMEOUT){
+                        pending.setTimeout(sAckTimer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                PendingAck expired = mCallbacks.asMap().remove(id);
+                                if(expired != null){
+                                    expired.fail(FAILURE_TIMEOUT);
+                                }
+                            }
+                        }, timeoutMillis));
+                    }
                     message.setCallback(true);
                 }
 
-                if(mGroups == null || mGroups.hasChild(target)){
-                    message.setTarget(target);
-                    mReference.child(message.getId()).setValue(message);
-                }else if(mGroups.exists()){
-//                        DataSnapshot members = mGroups.child(target);
-//                        if(members.exists()){
-//                            for(Iterator<DataSnapshot> iterator = members.getChildren().iterator(); iterator.hasNext();){
-//                                String subTarget = iterator.next().getKey();
-//                                Message childMessage = message.getChildInstance();
-//                                childMessage.setTarget(subTarget);
-//                                mReference.child(childMessage.getId()).setValue(childMessage);
-//                            }
-//                        }
+                if(!mTransport.send(message) && callback != null){
+                    PendingAck dropped = mCallbacks.asMap().remove(message.getId());
+                    if(dropped != null){
+                        dropped.fail(FAILURE_DISCONNECTED);
                     }
+                }
             }
         };
     }
 
+    //timeout of the emits not given one
+    public void setAckTimeout(long millis){
+        if(millis < 0) throw new IllegalArgumentException("negative timeout " + millis);
+        this.mAckTimeout = millis;
+    }
+
+    public long getAckTimeout(){
+        return mAckTimeout;
+    }
+
     public void on(String event, Listener listener){
         if(listener == null){//remove current
             off(event);
@@ -93,53 +128,26 @@ public class Messenger implements ChildEventListener {
     }
 
     public void off(String event){
-        if(mListeners.containsKey(event)){
-            mListeners.remove(event);
-        }
+        mListeners.remove(event);
     }
 
     public void join(String group){
-        mGroupsReference.child(group).child(mId).setValue(0);
+        mTransport.join(group);
     }
 
     public void leave(String group){
-        mGroupsReference.child(group).child(mId).removeValue();
+        mTransport.leave(group);
     }
 
-    ValueEventListener groupsListener = new ValueEventListener() {
-        @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
-
-        }
-
-        @Override
-        public void onCancelled(DatabaseError databaseError) {
-
-        }
-    };
-
-
     @Override
-    public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-        Message message = null;
-        try{
-            message = dataSnapshot.getValue(Message.class);
-
-        }catch(DatabaseException e){
-            e.printStackTrace();
-        }
-
-        if(message!= null){
-            handleMessage(message);
-        }
-
-        //remove from database.
-        dataSnapshot.getRef().removeValue();
+    public void onMessage(Message message) {
+        handleMessage(message);
     }
 
     private boolean handleMessage(final Message message) {
         String event = message.getType();
-        if(mListeners.containsKey(event)){
+        Listener listener = mListeners.get(event);
+        if(listener != null){
             Ack callback = null;
             if(message.isCallback()){
                 //route response to sending messenger
@@ -150,40 +158,29 @@ public class Messenger implements ChildEventListener {
                     }
                 };
             }
-            mListeners.get(event).call(message.getMessage(), callback);
+            listener.call(message.getMessage(), callback);
             return true;
+        }
 
         //assume that none of the event listeners match the uuid of a message
-        }else if(mCallbacks.containsKey(event)){
-            mCallbacks.get(event).call(message.getMessage());
-            mCallbacks.remove(event);
+        PendingAck pending = mCallbacks.asMap().remove(event);
+        if(pending != null){
+            pending.cancelTimeout();    //removing it from the table won the race with the timeout
+            pending.mAck.call(message.getMessage());
             return true;
         }
         return false;
     }
 
-    @Override
-    public void onChildChanged(DataSnapshot dataSnapshot, String s) {
-
-    }
-
-    @Override
-    public void onChildRemoved(DataSnapshot dataSnapshot) {
-
-    }
-
-    @Override
-    public void onChildMoved(DataSnapshot dataSnapshot, String s) {
-
-    }
-
-    @Override
-    public void onCancelled(DatabaseError databaseError) {
-        databaseError.toException().printStackTrace();
-    }
-
+    //acks still pending fail with FAILURE_DISCONNECTED
     public void disconnect(){
-        mReference.removeEventListener(this);
+        mTransport.disconnect();
+        for(String id : mCallbacks.asMap().keySet()){
+            PendingAck pending = mCallbacks.asMap().remove(id);
+            if(pending != null){
+                pending.fail(FAILURE_DISCONNECTED);
+            }
+        }
     }
 
     public abstract class Emitter{
@@ -191,7 +188,13 @@ public class Messenger implements ChildEventListener {
             emit(event, msg, null);
         }
 
-        abstract public void emit(String event, String msg, Ack callback);
+        public void emit(String event, String msg, Ack callback){
+            emit(event, msg, callback, mAckTimeout, null);
+        }
+
+        //callback is called with the response, unless failure is told why it won't be first.
+        //NO_TIMEOUT waits until the ack is evicted or the messenger disconnects.
+        abstract public void emit(String event, String msg, Ack callback, long timeoutMillis, Failure failure);
     }
 
     public interface Listener{
@@ -201,4 +204,54 @@ public class Messenger implements ChildEventListener {
     public interface Ack{
         void call(String args);
     }
+
+    //called on the timer thread for FAILURE_TIMEOUT, else on the thread that caused the failure
+    public interface Failure{
+        void onFailure(int reason);
+    }
+
+    private static class PendingAck{
+        final Ack mAck;
+        final Failure mFailure;
+        private TimerWheel.Timeout mTimeout;    //guarded by this
+        private boolean mDone;
+
+        PendingAck(Ack ack, Failure failure){
+            this.mAck = ack;
+            this.mFailure = failure;
+        }
+
+        //the ack may already be done, when its response or eviction beat the timeout being set
+        void setTimeout(TimerWheel.Timeout timeout){
+            synchronized (this){
+                if(!mDone){
+                    mTimeout = timeout;
+                    return;
+                }
+            }
+            timeout.cancel();
+        }
+
+        //called once the ack has been removed from the table
+        void cancelTimeout(){
+            TimerWheel.Timeout timeout;
+            synchronized (this){
+                mDone = true;
+                timeout = mTimeout;
+            }
+            if(timeout != null){
+                timeout.cancel();
+            }
+        }
+
+        //called once the ack has been removed from the table
+        void fail(int reason){
+            if(reason != FAILURE_TIMEOUT){
+                cancelTimeout();
+            }
+            if(mFailure != null){
+                mFailure.onFailure(reason);
+            }
+        }
+    }
 }
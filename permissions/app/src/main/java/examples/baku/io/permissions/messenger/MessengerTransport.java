@@ -0,0 +1,30 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+/**
+ * Carries {@link Message}s between Messengers. A Messenger builds messages and routes responses,
+ * the transport only delivers each message to the messenger, or group, it targets.
+ */
+public interface MessengerTransport {
+
+    //start delivering the messages targeted at id, or at a group it joined, to receiver
+    void connect(String id, Receiver receiver);
+
+    //message has its source and target set. false if it was dropped, as before connect or after
+    //disconnect, so its ack fails straight away.
+    boolean send(Message message);
+
+    void join(String group);
+
+    void leave(String group);
+
+    //stop delivering, after sending what is pending
+    void disconnect();
+
+    interface Receiver {
+        void onMessage(Message message);
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Thread selecting the channels of the socket transport. Channels are registered, and their
+ * interest changed, by tasks run on the loop between selections.
+ */
+final class SelectorLoop implements Executor, Runnable {
+
+    private static final String TAG = SelectorLoop.class.getSimpleName();
+
+    interface Selectable {
+        //called on the loop with the ready operations of key
+        void onReady(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean mClosed;
+
+    SelectorLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+    }
+
+    void start(){
+        mThread.start();
+    }
+
+    //only used on the loop
+    Selector getSelector(){
+        return mSelector;
+    }
+
+    @Override
+    public void execute(Runnable task){
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    //closes every registered channel, then the loop
+    void close(){
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run(){
+        try{
+            while(!mClosed){
+                mSelector.select();
+                Runnable task;
+                while((task = mTasks.poll()) != null){
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Selectable selectable = (Selectable) key.attachment();
+                    try{
+                        if(key.isValid()){
+                            selectable.onReady(key);
+                        }
+                    }catch(IOException | CancelledKeyException e){
+                        Log.w(TAG, "closing a connection that failed", e);
+                        selectable.close();
+                    }
+                }
+            }
+        }catch(IOException e){
+            Log.e(TAG, "selector failed, closing every connection", e);
+        }finally{
+            List<Selectable> registered = new ArrayList<>();
+            for(SelectionKey key : mSelector.keys()){
+                registered.add((Selectable) key.attachment());
+            }
+            for(Selectable selectable : registered){
+                selectable.close();
+            }
+            try{
+                mSelector.close();
+            }catch(IOException e){
+                Log.w(TAG, "couldn't close the selector", e);
+            }
+        }
+    }
+}
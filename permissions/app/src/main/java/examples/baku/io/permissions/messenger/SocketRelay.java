@@ -0,0 +1,145 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Routes the frames of {@link SocketTransport}s connected to it: each message goes to the
+ * messenger it targets, or to every other member of the group it targets. Nothing is stored, a
+ * message for a messenger that isn't connected is dropped.
+ */
+public class SocketRelay implements SelectorLoop.Selectable, FrameConnection.Handler {
+
+    private static final String TAG = SocketRelay.class.getSimpleName();
+
+    private final SelectorLoop mLoop;
+    private final ServerSocketChannel mServer;
+
+    //loop confined
+    private final Map<String, FrameConnection> mClients = new HashMap<>();
+    private final Map<String, Set<FrameConnection>> mGroups = new HashMap<>();
+
+    //listens on address, port 0 for any free port
+    public SocketRelay(InetSocketAddress address) throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.configureBlocking(false);
+        mServer.socket().bind(address);
+        mLoop = new SelectorLoop("SocketRelay");
+        mLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    mServer.register(mLoop.getSelector(), SelectionKey.OP_ACCEPT, SocketRelay.this);
+                }catch(IOException e){
+                    Log.e(TAG, "couldn't accept connections", e);
+                    mLoop.close();
+                }
+            }
+        });
+        mLoop.start();
+    }
+
+    public InetSocketAddress getAddress(){
+        return (InetSocketAddress) mServer.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        SocketChannel channel;
+        while((channel = mServer.accept()) != null){
+            new FrameConnection(mLoop, channel, this).start(null);
+        }
+    }
+
+    @Override
+    public void onFrame(FrameConnection connection, byte kind, ByteBuffer payload){
+        switch(kind){
+            case MessageCodec.KIND_HELLO:
+                String id = MessageCodec.getString(payload);
+                connection.setId(id);
+                mClients.put(id, connection);   //a reconnecting messenger replaces its old connection
+                break;
+            case MessageCodec.KIND_MESSAGE:
+                route(MessageCodec.decodeMessage(payload.duplicate()), MessageCodec.encode(kind, payload), connection);
+                break;
+            case MessageCodec.KIND_JOIN:
+                String joined = MessageCodec.getString(payload);
+                Set<FrameConnection> members = mGroups.get(joined);
+                if(members == null){
+                    members = new LinkedHashSet<>();
+                    mGroups.put(joined, members);
+                }
+                members.add(connection);
+                break;
+            case MessageCodec.KIND_LEAVE:
+                leave(MessageCodec.getString(payload), connection);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown frame kind " + kind);
+        }
+    }
+
+    private void route(Message message, ByteBuffer frame, FrameConnection source){
+        String target = message.getTarget();
+        FrameConnection client = mClients.get(target);
+        if(client != null){
+            client.send(frame);
+            return;
+        }
+        Set<FrameConnection> members = mGroups.get(target);
+        if(members != null){
+            for(FrameConnection member : members){
+                if(member != source){
+                    member.send(frame.duplicate());
+                }
+            }
+        }
+    }
+
+    private void leave(String group, FrameConnection connection){
+        Set<FrameConnection> members = mGroups.get(group);
+        if(members != null && members.remove(connection) && members.isEmpty()){
+            mGroups.remove(group);
+        }
+    }
+
+    @Override
+    public void onClosed(FrameConnection connection){
+        String id = connection.getId();
+        if(id != null && mClients.get(id) == connection){
+            mClients.remove(id);
+        }
+        for(String group : mGroups.keySet().toArray(new String[mGroups.size()])){
+            leave(group, connection);
+        }
+    }
+
+    //only called on the loop
+    @Override
+    public void close(){
+        try{
+            mServer.close();
+        }catch(IOException e){
+            Log.w(TAG, "couldn't close the server socket", e);
+        }
+    }
+
+    //disconnects every client and stops listening
+    public void shutdown(){
+        mLoop.close();
+    }
+}
@@ -0,0 +1,185 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Messages sent straight to a {@link SocketRelay} over a TCP connection, without writing them
+ * anywhere. A message only reaches messengers connected to the relay when it arrives.
+ *
+ * A dropped connection is made again after a delay, doubling while the relay can't be reached,
+ * and says hello and joins the groups joined again. Frames sent in the meantime are written once
+ * it connects, messages routed to this messenger in the meantime are lost.
+ */
+public class SocketTransport implements MessengerTransport, FrameConnection.Handler {
+
+    private static final String TAG = SocketTransport.class.getSimpleName();
+
+    static final long RECONNECT_MIN_MILLIS = 100;
+    static final long RECONNECT_MAX_MILLIS = 10000;
+
+    private static final TimerWheel sReconnectTimer = new TimerWheel("SocketTransport-reconnect");
+
+    private final InetSocketAddress mRelay;
+    private final Executor mExecutor;
+    private SelectorLoop mLoop;
+    private volatile FrameConnection mConnection;
+    private volatile Receiver mReceiver;
+
+    //guarded by this
+    private String mId;
+    private final Set<String> mGroups = new LinkedHashSet<>();  //joined again on reconnecting
+    private long mReconnectDelay = RECONNECT_MIN_MILLIS;
+    private boolean mDisconnected;
+
+    //messages are delivered on executor
+    public SocketTransport(InetSocketAddress relay, Executor executor){
+        if(relay == null) throw new IllegalArgumentException("null relay");
+        if(executor == null) throw new IllegalArgumentException("null executor");
+        this.mRelay = relay;
+        this.mExecutor = executor;
+    }
+
+    //frames sent before the connection is made are written once it is
+    @Override
+    public synchronized void connect(String id, Receiver receiver){
+        if(mConnection != null){
+            throw new IllegalStateException("already connected");
+        }
+        mId = id;
+        mReceiver = receiver;
+        try{
+            mLoop = new SelectorLoop("SocketTransport-" + id);
+            mConnection = open();
+        }catch(IOException e){
+            throw new RuntimeException("couldn't open a socket to " + mRelay, e);
+        }
+        mConnection.start(mRelay);
+        mLoop.start();
+    }
+
+    //a connection saying hello and joining the groups joined, once it is started
+    private FrameConnection open() throws IOException {
+        FrameConnection connection = new FrameConnection(mLoop, SocketChannel.open(), this);
+        connection.send(MessageCodec.encode(MessageCodec.KIND_HELLO, mId));
+        for(String group : mGroups){
+            connection.send(MessageCodec.encode(MessageCodec.KIND_JOIN, group));
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean send(Message message){
+        FrameConnection connection;
+        synchronized (this){
+            if(mConnection == null || mDisconnected){
+                return false;
+            }
+            connection = mConnection;
+        }
+        connection.send(MessageCodec.encode(message));
+        return true;
+    }
+
+    @Override
+    public void join(String group){
+        FrameConnection connection;
+        synchronized (this){
+            if(!mGroups.add(group)){
+                return;
+            }
+            connection = mConnection;
+        }
+        if(connection != null){ //else joined by connect
+            connection.send(MessageCodec.encode(MessageCodec.KIND_JOIN, group));
+        }
+    }
+
+    @Override
+    public void leave(String group){
+        FrameConnection connection;
+        synchronized (this){
+            if(!mGroups.remove(group)){
+                return;
+            }
+            connection = mConnection;
+        }
+        if(connection != null){
+            connection.send(MessageCodec.encode(MessageCodec.KIND_LEAVE, group));
+        }
+    }
+
+    @Override
+    public void onFrame(FrameConnection connection, byte kind, ByteBuffer payload){
+        if(kind != MessageCodec.KIND_MESSAGE){
+            throw new IllegalArgumentException("unexpected frame kind " + kind);
+        }
+        final Message message = MessageCodec.decodeMessage(payload);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Receiver receiver = mReceiver;
+                if(receiver != null){
+                    receiver.onMessage(message);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onClosed(FrameConnection connection){
+        final FrameConnection next;
+        long delay;
+        synchronized (this){
+            if(mDisconnected){
+                mLoop.close();
+                return;
+            }
+            if(connection != mConnection){
+                return;
+            }
+            //start over after a connection that worked, back off while the relay is unreachable
+            mReconnectDelay = connection.isConnected() ? RECONNECT_MIN_MILLIS : Math.min(mReconnectDelay * 2, RECONNECT_MAX_MILLIS);
+            delay = mReconnectDelay;
+            try{
+                next = open();
+            }catch(IOException e){
+                Log.e(TAG, "couldn't open a socket to " + mRelay, e);
+                mDisconnected = true;   //sends fail from now on
+                mLoop.close();
+                return;
+            }
+            mConnection = next;     //queues what is sent until it connects
+        }
+        sReconnectTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                next.start(mRelay);
+            }
+        }, delay);
+    }
+
+    @Override
+    public void disconnect(){
+        FrameConnection connection;
+        synchronized (this){
+            mDisconnected = true;
+            connection = mConnection;
+        }
+        mReceiver = null;
+        if(connection != null){
+            connection.shutdown();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel: timeouts are linked into the bucket of the tick they expire on, so
+ * scheduling and cancelling cost the same however many are pending. Both can be done from any
+ * thread, and are applied by the wheel's thread on its next tick. A timeout fires on that thread,
+ * within a tick after its delay.
+ */
+final class TimerWheel implements Runnable {
+
+    private static final String TAG = TimerWheel.class.getSimpleName();
+
+    static final long TICK_MILLIS = 100;
+    static final int WHEEL_SIZE = 512;  //power of two, 51.2s a turn
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    final class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;   //tick
+        private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+
+        //bucket list, only used on the wheel thread
+        private Timeout mPrevious;
+        private Timeout mNext;
+        private int mBucket = -1;
+
+        private Timeout(Runnable task, long deadline){
+            this.mTask = task;
+            this.mDeadline = deadline;
+        }
+
+        //false if it already fired
+        boolean cancel(){
+            if(!mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)){
+                return false;
+            }
+            mCancelled.add(this);
+            return true;
+        }
+    }
+
+    private final Thread mThread;
+    private final long mStartNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> mAdded = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> mCancelled = new ConcurrentLinkedQueue<>();
+
+    //only used on the wheel thread
+    private final Timeout[] mBuckets = new Timeout[WHEEL_SIZE];
+    private long mTick;
+
+    TimerWheel(String name){
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    //run task on the wheel thread after delayMillis, unless cancelled first
+    Timeout schedule(Runnable task, long delayMillis){
+        if(delayMillis < 0) throw new IllegalArgumentException("negative delay " + delayMillis);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos) + delayMillis;
+        Timeout timeout = new Timeout(task, (elapsed + TICK_MILLIS - 1) / TICK_MILLIS);
+        mAdded.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run(){
+        while(true){
+            long wait = (mTick + 1) * TICK_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+            if(wait > 0){
+                try{
+                    Thread.sleep(wait);
+                }catch(InterruptedException e){
+                    return;
+                }
+            }
+            mTick++;
+            unlinkCancelled();
+            linkAdded();
+            expire();
+        }
+    }
+
+    private void unlinkCancelled(){
+        Timeout timeout;
+        while((timeout = mCancelled.poll()) != null){
+            if(timeout.mBucket < 0){    //not linked yet
+                continue;
+            }
+            if(timeout.mPrevious == null){
+                mBuckets[timeout.mBucket] = timeout.mNext;
+            }else{
+                timeout.mPrevious.mNext = timeout.mNext;
+            }
+            if(timeout.mNext != null){
+                timeout.mNext.mPrevious = timeout.mPrevious;
+            }
+            timeout.mPrevious = timeout.mNext = null;
+            timeout.mBucket = -1;
+        }
+    }
+
+    private void linkAdded(){
+        Timeout timeout;
+        while((timeout = mAdded.poll()) != null){
+            if(timeout.mState.get() != STATE_PENDING){
+                continue;
+            }
+            int bucket = (int) (Math.max(timeout.mDeadline, mTick) & (WHEEL_SIZE - 1));  //late ones expire now
+            timeout.mBucket = bucket;
+            timeout.mNext = mBuckets[bucket];
+            if(timeout.mNext != null){
+                timeout.mNext.mPrevious = timeout;
+            }
+            mBuckets[bucket] = timeout;
+        }
+    }
+
+    //fire the timeouts of this tick. the others in the bucket are due a turn or more later
+    private void expire(){
+        int bucket = (int) (mTick & (WHEEL_SIZE - 1));
+        Timeout timeout = mBuckets[bucket];
+        while(timeout != null){
+            Timeout next = timeout.mNext;
+            if(timeout.mDeadline <= mTick){
+                if(timeout.mPrevious == null){
+                    mBuckets[bucket] = next;
+                }else{
+                    timeout.mPrevious.mNext = next;
+                }
+                if(next != null){
+                    next.mPrevious = timeout.mPrevious;
+                }
+                timeout.mPrevious = timeout.mNext = null;
+                timeout.mBucket = -1;
+                if(timeout.mState.compareAndSet(STATE_PENDING, STATE_EXPIRED)){
+                    try{
+                        timeout.mTask.run();
+                    }catch(RuntimeException e){
+                        Log.e(TAG, "timeout task failed", e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
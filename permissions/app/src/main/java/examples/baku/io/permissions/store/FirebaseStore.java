@@ -0,0 +1,359 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tree store backed by the Firebase real-time database.
+ */
+public class FirebaseStore {
+
+    private final FirebaseDatabase mDatabase;
+
+    public FirebaseStore(FirebaseDatabase database) {
+        if (database == null) throw new IllegalArgumentException("null database");
+        this.mDatabase = database;
+    }
+
+    public StoreReference getReference() {
+        return wrap(mDatabase.getReference());
+    }
+
+    public StoreReference getReference(String path) {
+        return wrap(mDatabase.getReference(path));
+    }
+
+    public static StoreReference wrap(DatabaseReference reference) {
+        return new FirebaseReference(reference);
+    }
+
+    public static StoreSnapshot wrap(DataSnapshot snapshot) {
+        return new FirebaseSnapshot(snapshot);
+    }
+
+    static StoreError wrap(DatabaseError error) {
+        return error == null ? null : new StoreError(error.getCode(), error.getMessage());
+    }
+
+    private static class FirebaseQuery implements StoreQuery {
+        final Query mQuery;
+
+        FirebaseQuery(Query query) {
+            this.mQuery = query;
+        }
+
+        @Override
+        public StoreChildListener addChildListener(StoreChildListener listener) {
+            mQuery.addChildEventListener(new ChildListenerAdapter(listener));
+            return listener;
+        }
+
+        @Override
+        public StoreValueListener addValueListener(StoreValueListener listener) {
+            mQuery.addValueEventListener(new ValueListenerAdapter(listener));
+            return listener;
+        }
+
+        @Override
+        public void addSingleValueListener(StoreValueListener listener) {
+            mQuery.addListenerForSingleValueEvent(new ValueListenerAdapter(listener));
+        }
+
+        //adapters are equal to any adapter of the same listener, so firebase finds the registered one
+        @Override
+        public void removeListener(StoreChildListener listener) {
+            mQuery.removeEventListener(new ChildListenerAdapter(listener));
+        }
+
+        @Override
+        public void removeListener(StoreValueListener listener) {
+            mQuery.removeEventListener(new ValueListenerAdapter(listener));
+        }
+
+        @Override
+        public StoreQuery orderByChild(String key) {
+            return new FirebaseQuery(mQuery.orderByChild(key));
+        }
+
+        @Override
+        public StoreQuery equalTo(String value) {
+            return new FirebaseQuery(mQuery.equalTo(value));
+        }
+
+        @Override
+        public StoreQuery startAt(double value) {
+            return new FirebaseQuery(mQuery.startAt(value));
+        }
+
+        @Override
+        public StoreQuery endAt(double value) {
+            return new FirebaseQuery(mQuery.endAt(value));
+        }
+
+        @Override
+        public StoreReference getRef() {
+            return wrap(mQuery.getRef());
+        }
+    }
+
+    private static class FirebaseReference extends FirebaseQuery implements StoreReference {
+        final DatabaseReference mReference;
+
+        FirebaseReference(DatabaseReference reference) {
+            super(reference);
+            this.mReference = reference;
+        }
+
+        @Override
+        public StoreReference child(String path) {
+            return wrap(mReference.child(path));
+        }
+
+        @Override
+        public StoreReference push() {
+            return wrap(mReference.push());
+        }
+
+        @Override
+        public String getKey() {
+            return mReference.getKey();
+        }
+
+        @Override
+        public void setValue(Object value) {
+            mReference.setValue(value);
+        }
+
+        @Override
+        public void removeValue() {
+            mReference.removeValue();
+        }
+
+        @Override
+        public void updateChildren(Map<String, Object> values) {
+            mReference.updateChildren(values);
+        }
+
+        @Override
+        public void runTransaction(final StoreTransaction transaction) {
+            mReference.runTransaction(new Transaction.Handler() {
+                @Override
+                public Transaction.Result doTransaction(MutableData currentData) {
+                    if (transaction.doTransaction(new FirebaseMutableData(currentData))) {
+                        return Transaction.success(currentData);
+                    }
+                    return Transaction.abort();
+                }
+
+                @Override
+                public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                    transaction.onComplete(wrap(databaseError), committed, dataSnapshot == null ? null : wrap(dataSnapshot));
+                }
+            }, false);  //listeners only see committed values, like with other stores
+        }
+
+        @Override
+        public StoreReference getRef() {
+            return this;
+        }
+    }
+
+    private static class FirebaseSnapshot implements StoreSnapshot {
+        final DataSnapshot mSnapshot;
+
+        FirebaseSnapshot(DataSnapshot snapshot) {
+            this.mSnapshot = snapshot;
+        }
+
+        @Override
+        public String getKey() {
+            return mSnapshot.getKey();
+        }
+
+        @Override
+        public boolean exists() {
+            return mSnapshot.exists();
+        }
+
+        @Override
+        public StoreSnapshot child(String path) {
+            return wrap(mSnapshot.child(path));
+        }
+
+        @Override
+        public boolean hasChild(String path) {
+            return mSnapshot.hasChild(path);
+        }
+
+        @Override
+        public Iterable<StoreSnapshot> getChildren() {
+            List<StoreSnapshot> result = new ArrayList<>();
+            for (DataSnapshot child : mSnapshot.getChildren()) {
+                result.add(wrap(child));
+            }
+            return result;
+        }
+
+        @Override
+        public long getChildrenCount() {
+            return mSnapshot.getChildrenCount();
+        }
+
+        @Override
+        public Object getValue() {
+            return mSnapshot.getValue();
+        }
+
+        @Override
+        public <T> T getValue(Class<T> valueType) {
+            try {
+                return mSnapshot.getValue(valueType);
+            } catch (DatabaseException e) {
+                throw new StoreException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public StoreReference getRef() {
+            return wrap(mSnapshot.getRef());
+        }
+    }
+
+    private static class FirebaseMutableData implements StoreMutableData {
+        final MutableData mData;
+
+        FirebaseMutableData(MutableData data) {
+            this.mData = data;
+        }
+
+        @Override
+        public String getKey() {
+            return mData.getKey();
+        }
+
+        @Override
+        public StoreMutableData child(String path) {
+            return new FirebaseMutableData(mData.child(path));
+        }
+
+        @Override
+        public boolean hasChild(String path) {
+            return mData.hasChild(path);
+        }
+
+        @Override
+        public Iterable<StoreMutableData> getChildren() {
+            List<StoreMutableData> result = new ArrayList<>();
+            for (MutableData child : mData.getChildren()) {
+                result.add(new FirebaseMutableData(child));
+            }
+            return result;
+        }
+
+        @Override
+        public Object getValue() {
+            return mData.getValue();
+        }
+
+        @Override
+        public <T> T getValue(Class<T> valueType) {
+            try {
+                return mData.getValue(valueType);
+            } catch (DatabaseException e) {
+                throw new StoreException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void setValue(Object value) {
+            mData.setValue(value);
+        }
+    }
+
+    private static class ChildListenerAdapter implements ChildEventListener {
+        final StoreChildListener mListener;
+
+        ChildListenerAdapter(StoreChildListener listener) {
+            this.mListener = listener;
+        }
+
+        @Override
+        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+            mListener.onChildAdded(wrap(dataSnapshot), s);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+            mListener.onChildChanged(wrap(dataSnapshot), s);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot dataSnapshot) {
+            mListener.onChildRemoved(wrap(dataSnapshot));
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+            //children are only ordered by key
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            mListener.onCancelled(wrap(databaseError));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChildListenerAdapter && ((ChildListenerAdapter) o).mListener.equals(mListener);
+        }
+
+        @Override
+        public int hashCode() {
+            return mListener.hashCode();
+        }
+    }
+
+    private static class ValueListenerAdapter implements ValueEventListener {
+        final StoreValueListener mListener;
+
+        ValueListenerAdapter(StoreValueListener listener) {
+            this.mListener = listener;
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            mListener.onDataChange(wrap(dataSnapshot));
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            mListener.onCancelled(wrap(databaseError));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ValueListenerAdapter && ((ValueListenerAdapter) o).mListener.equals(mListener);
+        }
+
+        @Override
+        public int hashCode() {
+            return mListener.hashCode();
+        }
+    }
+}
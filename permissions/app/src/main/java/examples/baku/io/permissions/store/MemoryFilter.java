@@ -0,0 +1,66 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+/**
+ * Range of values at a child key that children must fall in to pass a query.
+ *
+ * Values compare like Firebase orders them: missing, false, true, numbers, strings, then
+ * nodes with children. A null bound leaves that side open.
+ */
+final class MemoryFilter {
+
+    final String mKey;
+    final Object mStart;
+    final Object mEnd;
+
+    MemoryFilter(String key, Object start, Object end) {
+        if (key == null) throw new IllegalArgumentException("null key");
+        this.mKey = key;
+        this.mStart = start;
+        this.mEnd = end;
+    }
+
+    boolean matches(MemoryNode node) {
+        if (!node.exists()) {
+            return false;
+        }
+        MemoryNode value = node.getChild(mKey);
+        return (mStart == null || compare(value, mStart) >= 0)
+                && (mEnd == null || compare(value, mEnd) <= 0);
+    }
+
+    private static int compare(MemoryNode node, Object bound) {
+        Object value = node.exists() && !node.isLeaf() ? node : node.getLeafValue();
+        int rank = rank(value);
+        int boundRank = rank(bound);
+        if (rank != boundRank) {
+            return rank < boundRank ? -1 : 1;
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value).compareTo((Boolean) bound);
+        }
+        if (value instanceof Number) {
+            return Double.compare(((Number) value).doubleValue(), ((Number) bound).doubleValue());
+        }
+        if (value instanceof String) {
+            return ((String) value).compareTo((String) bound);
+        }
+        return 0;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof Number) {
+            return 2;
+        } else if (value instanceof String) {
+            return 3;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Transaction data over an immutable tree. Every view of the same transaction shares the
+ * tree being built, so writes through child views show up in their parents.
+ */
+class MemoryMutableData implements StoreMutableData {
+
+    private final Root mRoot;
+    private final String[] mPath;   //relative to the transaction location
+    private final String mKey;
+
+    MemoryMutableData(MemoryNode node, String key) {
+        this(new Root(node), MemoryReference.ROOT, key);
+    }
+
+    private MemoryMutableData(Root root, String[] path, String key) {
+        this.mRoot = root;
+        this.mPath = path;
+        this.mKey = key;
+    }
+
+    MemoryNode getRoot() {
+        return mRoot.node;
+    }
+
+    private MemoryNode getNode() {
+        return mRoot.node.get(mPath);
+    }
+
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @Override
+    public StoreMutableData child(String path) {
+        String[] childPath = MemoryReference.append(mPath, path);
+        return new MemoryMutableData(mRoot, childPath, childPath.length == 0 ? mKey : childPath[childPath.length - 1]);
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return mRoot.node.get(MemoryReference.append(mPath, path)).exists();
+    }
+
+    @Override
+    public Iterable<StoreMutableData> getChildren() {
+        MemoryNode node = getNode();
+        List<StoreMutableData> result = new ArrayList<>(node.getChildCount());
+        for (int i = 0; i < node.getChildCount(); i++) {
+            result.add(child(node.getKey(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public Object getValue() {
+        return getNode().toPlain();
+    }
+
+    @Override
+    public <T> T getValue(Class<T> valueType) {
+        return StoreValues.fromPlain(getNode().toPlain(), valueType);
+    }
+
+    @Override
+    public void setValue(Object value) {
+        mRoot.node = mRoot.node.set(mPath, 0, MemoryNode.of(StoreValues.toPlain(value)));
+    }
+
+    private static class Root {
+        MemoryNode node;
+
+        Root(MemoryNode node) {
+            this.node = node;
+        }
+    }
+}
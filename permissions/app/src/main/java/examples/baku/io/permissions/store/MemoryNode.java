@@ -0,0 +1,191 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable node of a local store tree, either a leaf value or sorted children.
+ *
+ * Updates copy the nodes along the updated path and share everything else, so a node that is
+ * the same instance in two trees holds the same value, and snapshots never need copying.
+ */
+final class MemoryNode {
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final MemoryNode[] NO_CHILDREN = new MemoryNode[0];
+
+    static final MemoryNode EMPTY = new MemoryNode(null, NO_KEYS, NO_CHILDREN);
+
+    private final Object mValue;    //plain leaf value, null for nodes with children
+    private final String[] mKeys;
+    private final MemoryNode[] mChildren;
+
+    private MemoryNode(Object value, String[] keys, MemoryNode[] children) {
+        this.mValue = value;
+        this.mKeys = keys;
+        this.mChildren = children;
+    }
+
+    //node for a value in plain form
+    static MemoryNode of(Object plain) {
+        if (plain == null) {
+            return EMPTY;
+        }
+        if (!(plain instanceof Map)) {
+            return new MemoryNode(plain, NO_KEYS, NO_CHILDREN);
+        }
+        TreeMap<String, MemoryNode> children = new TreeMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) plain).entrySet()) {
+            MemoryNode child = of(entry.getValue());
+            if (child.exists()) {
+                children.put((String) entry.getKey(), child);
+            }
+        }
+        if (children.isEmpty()) {
+            return EMPTY;
+        }
+        return new MemoryNode(null, children.keySet().toArray(new String[children.size()]),
+                children.values().toArray(new MemoryNode[children.size()]));
+    }
+
+    boolean exists() {
+        return mValue != null || mKeys.length > 0;
+    }
+
+    boolean isLeaf() {
+        return mValue != null;
+    }
+
+    Object getLeafValue() {
+        return mValue;
+    }
+
+    int getChildCount() {
+        return mKeys.length;
+    }
+
+    String getKey(int index) {
+        return mKeys[index];
+    }
+
+    MemoryNode getChild(int index) {
+        return mChildren[index];
+    }
+
+    //index of key, or (-(insertion point) - 1) if absent
+    int indexOf(String key) {
+        return Arrays.binarySearch(mKeys, key);
+    }
+
+    MemoryNode getChild(String key) {
+        int index = indexOf(key);
+        return index >= 0 ? mChildren[index] : EMPTY;
+    }
+
+    MemoryNode get(String[] path) {
+        MemoryNode result = this;
+        for (int i = 0; i < path.length && result != EMPTY; i++) {
+            result = result.getChild(path[i]);
+        }
+        return result;
+    }
+
+    //copy of this tree with node at path, or without path if node is EMPTY.
+    //returns this if nothing changed.
+    MemoryNode set(String[] path, int depth, MemoryNode node) {
+        if (depth == path.length) {
+            return node;
+        }
+        String key = path[depth];
+        int index = indexOf(key);
+        MemoryNode child = index >= 0 ? mChildren[index] : EMPTY;
+        MemoryNode updated = child.set(path, depth + 1, node);
+        if (updated == child) {
+            return this;
+        }
+        return withChild(index, key, updated);
+    }
+
+    //a leaf given children stops being a leaf
+    private MemoryNode withChild(int index, String key, MemoryNode child) {
+        int count = mKeys.length;
+        if (index >= 0) {
+            if (!child.exists()) {
+                if (count == 1) {
+                    return EMPTY;
+                }
+                String[] keys = new String[count - 1];
+                MemoryNode[] children = new MemoryNode[count - 1];
+                System.arraycopy(mKeys, 0, keys, 0, index);
+                System.arraycopy(mKeys, index + 1, keys, index, count - index - 1);
+                System.arraycopy(mChildren, 0, children, 0, index);
+                System.arraycopy(mChildren, index + 1, children, index, count - index - 1);
+                return new MemoryNode(null, keys, children);
+            }
+            MemoryNode[] children = mChildren.clone();
+            children[index] = child;
+            return new MemoryNode(null, mKeys, children);
+        }
+        if (!child.exists()) {
+            return this;
+        }
+        int insert = -index - 1;
+        String[] keys = new String[count + 1];
+        MemoryNode[] children = new MemoryNode[count + 1];
+        System.arraycopy(mKeys, 0, keys, 0, insert);
+        System.arraycopy(mChildren, 0, children, 0, insert);
+        keys[insert] = key;
+        children[insert] = child;
+        System.arraycopy(mKeys, insert, keys, insert + 1, count - insert);
+        System.arraycopy(mChildren, insert, children, insert + 1, count - insert);
+        return new MemoryNode(null, keys, children);
+    }
+
+    //node with only the children that pass filter
+    MemoryNode filter(MemoryFilter filter) {
+        int count = 0;
+        for (MemoryNode child : mChildren) {
+            if (filter.matches(child)) {
+                count++;
+            }
+        }
+        if (count == mChildren.length) {
+            return this;
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        String[] keys = new String[count];
+        MemoryNode[] children = new MemoryNode[count];
+        for (int i = 0, j = 0; i < mChildren.length; i++) {
+            if (filter.matches(mChildren[i])) {
+                keys[j] = mKeys[i];
+                children[j++] = mChildren[i];
+            }
+        }
+        return new MemoryNode(null, keys, children);
+    }
+
+    //same children instances, as after filtering both sides of an unrelated change
+    boolean hasSameChildren(MemoryNode other) {
+        return this == other || (mValue == other.mValue && Arrays.equals(mKeys, other.mKeys)
+                && Arrays.equals(mChildren, other.mChildren));
+    }
+
+    Object toPlain() {
+        if (mValue != null || mKeys.length == 0) {
+            return mValue;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int i = 0; i < mKeys.length; i++) {
+            result.put(mKeys[i], mChildren[i].toPlain());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Location in a memory store, optionally filtered by a query.
+ */
+class MemoryReference implements StoreReference {
+
+    static final String[] ROOT = new String[0];
+
+    final MemoryStore mStore;
+    final String[] mPath;
+    private final String mOrderKey;
+    private final Object mStart;
+    private final Object mEnd;
+
+    MemoryReference(MemoryStore store, String[] path) {
+        this(store, path, null, null, null);
+    }
+
+    private MemoryReference(MemoryStore store, String[] path, String orderKey, Object start, Object end) {
+        this.mStore = store;
+        this.mPath = path;
+        this.mOrderKey = orderKey;
+        this.mStart = start;
+        this.mEnd = end;
+    }
+
+    //segments of path appended to base, ignoring empty ones
+    static String[] append(String[] base, String path) {
+        if (path == null) throw new IllegalArgumentException("null path");
+        List<String> result = new ArrayList<>(base.length + 4);
+        for (String segment : base) {
+            result.add(segment);
+        }
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                result.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public StoreReference child(String path) {
+        return new MemoryReference(mStore, append(mPath, path));
+    }
+
+    @Override
+    public StoreReference push() {
+        return child(mStore.nextPushKey());
+    }
+
+    @Override
+    public String getKey() {
+        return mPath.length == 0 ? null : mPath[mPath.length - 1];
+    }
+
+    @Override
+    public void setValue(Object value) {
+        mStore.write(new String[][]{mPath}, new Object[]{value});
+    }
+
+    @Override
+    public void removeValue() {
+        setValue(null);
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> values) {
+        String[][] paths = new String[values.size()][];
+        Object[] children = new Object[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            paths[i] = append(mPath, entry.getKey());
+            children[i++] = entry.getValue();
+        }
+        mStore.write(paths, children);
+    }
+
+    @Override
+    public void runTransaction(StoreTransaction transaction) {
+        mStore.runTransaction(mPath, transaction);
+    }
+
+    @Override
+    public StoreChildListener addChildListener(StoreChildListener listener) {
+        mStore.addListener(mPath, getFilter(), listener, null, false);
+        return listener;
+    }
+
+    @Override
+    public StoreValueListener addValueListener(StoreValueListener listener) {
+        mStore.addListener(mPath, getFilter(), null, listener, false);
+        return listener;
+    }
+
+    @Override
+    public void addSingleValueListener(StoreValueListener listener) {
+        mStore.addListener(mPath, getFilter(), null, listener, true);
+    }
+
+    @Override
+    public void removeListener(StoreChildListener listener) {
+        mStore.removeListener(mPath, listener);
+    }
+
+    @Override
+    public void removeListener(StoreValueListener listener) {
+        mStore.removeListener(mPath, listener);
+    }
+
+    //children are always in key order, orderByChild only names the key that ranges compare
+    @Override
+    public StoreQuery orderByChild(String key) {
+        if (key == null) throw new IllegalArgumentException("null key");
+        return new MemoryReference(mStore, mPath, key, mStart, mEnd);
+    }
+
+    @Override
+    public StoreQuery equalTo(String value) {
+        if (value == null) throw new IllegalArgumentException("null value");
+        return range(value, value);
+    }
+
+    @Override
+    public StoreQuery startAt(double value) {
+        return range(value, mEnd);
+    }
+
+    @Override
+    public StoreQuery endAt(double value) {
+        return range(mStart, value);
+    }
+
+    private StoreQuery range(Object start, Object end) {
+        if (mOrderKey == null) throw new IllegalArgumentException("ranges require orderByChild");
+        return new MemoryReference(mStore, mPath, mOrderKey, start, end);
+    }
+
+    @Override
+    public StoreReference getRef() {
+        return mOrderKey == null ? this : new MemoryReference(mStore, mPath);
+    }
+
+    private MemoryFilter getFilter() {
+        return mStart == null && mEnd == null ? null : new MemoryFilter(mOrderKey, mStart, mEnd);
+    }
+
+    @Override
+    public String toString() {
+        return "/" + MemoryStore.join(mPath);
+    }
+}
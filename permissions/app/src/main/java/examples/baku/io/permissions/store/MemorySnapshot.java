@@ -0,0 +1,78 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class MemorySnapshot implements StoreSnapshot {
+
+    private final MemoryStore mStore;
+    private final String[] mPath;
+    private final MemoryNode mNode;
+
+    MemorySnapshot(MemoryStore store, String[] path, MemoryNode node) {
+        this.mStore = store;
+        this.mPath = path;
+        this.mNode = node;
+    }
+
+    @Override
+    public String getKey() {
+        return mPath.length == 0 ? null : mPath[mPath.length - 1];
+    }
+
+    @Override
+    public boolean exists() {
+        return mNode.exists();
+    }
+
+    @Override
+    public StoreSnapshot child(String path) {
+        String[] childPath = MemoryReference.append(mPath, path);
+        MemoryNode node = mNode;
+        for (int i = mPath.length; i < childPath.length; i++) {
+            node = node.getChild(childPath[i]);
+        }
+        return new MemorySnapshot(mStore, childPath, node);
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return child(path).exists();
+    }
+
+    @Override
+    public Iterable<StoreSnapshot> getChildren() {
+        List<StoreSnapshot> result = new ArrayList<>(mNode.getChildCount());
+        for (int i = 0; i < mNode.getChildCount(); i++) {
+            String[] childPath = new String[mPath.length + 1];
+            System.arraycopy(mPath, 0, childPath, 0, mPath.length);
+            childPath[mPath.length] = mNode.getKey(i);
+            result.add(new MemorySnapshot(mStore, childPath, mNode.getChild(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public long getChildrenCount() {
+        return mNode.getChildCount();
+    }
+
+    @Override
+    public Object getValue() {
+        return mNode.toPlain();
+    }
+
+    @Override
+    public <T> T getValue(Class<T> valueType) {
+        return StoreValues.fromPlain(mNode.toPlain(), valueType);
+    }
+
+    @Override
+    public StoreReference getRef() {
+        return new MemoryReference(mStore, mPath);
+    }
+}
@@ -0,0 +1,428 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tree store held in memory, for running the permission and sync stack without Firebase.
+ *
+ * The tree is immutable and replaced on every write, so reads and snapshots never lock.
+ * Writes are serialized, and their events are queued in commit order. The queue is drained by
+ * the executor given at construction, or else by the writing thread, outside every lock, so
+ * listeners can write back to the store. Listeners may be added and removed from any thread.
+ */
+public class MemoryStore {
+
+    static final int MAX_TRANSACTION_RETRIES = 25;
+
+    private final Executor mExecutor;
+    private final Object mLock = new Object();
+    private volatile MemoryNode mRoot = MemoryNode.EMPTY;
+
+    //<path, registrations> guarded by mLock
+    private final TreeMap<String, List<Registration>> mRegistrations = new TreeMap<>();
+
+    private final ArrayDeque<Runnable> mEvents = new ArrayDeque<>();
+    private boolean mDispatching;   //guarded by mEvents
+
+    private final String mPushPrefix = pad(Long.toString(System.currentTimeMillis(), 36), 9);
+    private final AtomicLong mPushCount = new AtomicLong();
+
+    //listeners are called on the writing threads
+    public MemoryStore() {
+        this(null);
+    }
+
+    //listeners are called on executor, one at a time
+    public MemoryStore(Executor executor) {
+        this.mExecutor = executor;
+    }
+
+    public StoreReference getReference() {
+        return new MemoryReference(this, MemoryReference.ROOT);
+    }
+
+    public StoreReference getReference(String path) {
+        return getReference().child(path);
+    }
+
+    MemoryNode getNode(String[] path) {
+        return mRoot.get(path);
+    }
+
+    //keys sort in push order
+    String nextPushKey() {
+        return mPushPrefix + pad(Long.toString(mPushCount.incrementAndGet(), 36), 10);
+    }
+
+    private static String pad(String value, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = value.length(); i < length; i++) {
+            builder.append('0');
+        }
+        return builder.append(value).toString();
+    }
+
+    //replace the value at each path in a single change
+    void write(String[][] paths, Object[] values) {
+        MemoryNode[] nodes = new MemoryNode[values.length];
+        for (int i = 0; i < values.length; i++) {
+            nodes[i] = MemoryNode.of(StoreValues.toPlain(values[i]));
+        }
+        synchronized (mLock) {
+            MemoryNode previous = mRoot;
+            MemoryNode current = previous;
+            for (int i = 0; i < paths.length; i++) {
+                current = current.set(paths[i], 0, nodes[i]);
+            }
+            commit(previous, current, paths);
+        }
+        dispatchEvents();
+    }
+
+    void runTransaction(String[] path, StoreTransaction transaction) {
+        for (int retry = 0; retry < MAX_TRANSACTION_RETRIES; retry++) {
+            MemoryNode root = mRoot;
+            MemoryNode expected = root.get(path);
+            MemoryMutableData data = new MemoryMutableData(expected, path.length == 0 ? null : path[path.length - 1]);
+            if (!transaction.doTransaction(data)) {
+                enqueueCompletion(transaction, null, false, new MemorySnapshot(this, path, expected));
+                dispatchEvents();
+                return;
+            }
+            MemoryNode updated = data.getRoot();
+            synchronized (mLock) {
+                MemoryNode previous = mRoot;
+                if (previous != root && previous.get(path) != expected) {
+                    continue;   //changed while the transaction ran
+                }
+                commit(previous, previous.set(path, 0, updated), new String[][]{path});
+                enqueueCompletion(transaction, null, true, new MemorySnapshot(this, path, updated));
+            }
+            dispatchEvents();
+            return;
+        }
+        enqueueCompletion(transaction, new StoreError(StoreError.MAX_RETRIES, "transaction had too many retries"),
+                false, new MemorySnapshot(this, path, mRoot.get(path)));
+        dispatchEvents();
+    }
+
+    private void enqueueCompletion(final StoreTransaction transaction, final StoreError error,
+                                   final boolean committed, final StoreSnapshot snapshot) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                transaction.onComplete(error, committed, snapshot);
+            }
+        });
+    }
+
+    //must hold mLock
+    private void commit(MemoryNode previous, MemoryNode current, String[][] paths) {
+        if (previous == current) {
+            return;
+        }
+        mRoot = current;
+        if (mRegistrations.isEmpty()) {
+            return;
+        }
+        //<registration, changed child keys> null keys for registrations that need a full diff
+        Map<Registration, Set<String>> affected = new LinkedHashMap<>();
+        for (String[] path : paths) {
+            StringBuilder location = new StringBuilder();
+            for (int depth = 0; depth <= path.length; depth++) {
+                List<Registration> registrations = mRegistrations.get(location.toString());
+                if (registrations != null) {
+                    for (Registration registration : registrations) {
+                        if (depth == path.length) {
+                            affected.put(registration, null);
+                        } else if (!affected.containsKey(registration) || affected.get(registration) != null) {
+                            Set<String> keys = affected.get(registration);
+                            if (keys == null) {
+                                keys = new TreeSet<>();
+                                affected.put(registration, keys);
+                            }
+                            keys.add(path[depth]);
+                        }
+                    }
+                }
+                if (depth < path.length) {
+                    if (depth > 0) {
+                        location.append('/');
+                    }
+                    location.append(path[depth]);
+                }
+            }
+            //registrations below the written path
+            String prefix = location.toString();
+            Map<String, List<Registration>> below = prefix.isEmpty()
+                    ? mRegistrations.tailMap(prefix, false)
+                    : mRegistrations.subMap(prefix + '/', prefix + '0');  //'0' follows '/'
+            for (List<Registration> registrations : below.values()) {
+                for (Registration registration : registrations) {
+                    affected.put(registration, null);
+                }
+            }
+        }
+        for (Map.Entry<Registration, Set<String>> entry : affected.entrySet()) {
+            entry.getKey().collectEvents(previous, current, entry.getValue());
+        }
+    }
+
+    //filter is null to include every child
+    void addListener(String[] path, MemoryFilter filter,
+                     StoreChildListener childListener, StoreValueListener valueListener, boolean once) {
+        synchronized (mLock) {
+            Registration registration = new Registration(path, filter, childListener, valueListener);
+            registration.collectInitialEvents(mRoot);
+            if (!once) {
+                String key = join(path);
+                List<Registration> registrations = mRegistrations.get(key);
+                if (registrations == null) {
+                    registrations = new ArrayList<>(2);
+                    mRegistrations.put(key, registrations);
+                }
+                registrations.add(registration);
+            }
+        }
+        dispatchEvents();
+    }
+
+    void removeListener(String[] path, Object listener) {
+        synchronized (mLock) {
+            String key = join(path);
+            List<Registration> registrations = mRegistrations.get(key);
+            if (registrations == null) {
+                return;
+            }
+            for (int i = registrations.size() - 1; i >= 0; i--) {
+                Registration registration = registrations.get(i);
+                if (listener.equals(registration.mChildListener) || listener.equals(registration.mValueListener)) {
+                    registration.mActive = false;
+                    registrations.remove(i);
+                }
+            }
+            if (registrations.isEmpty()) {
+                mRegistrations.remove(key);
+            }
+        }
+    }
+
+    static String join(String[] path) {
+        if (path.length == 0) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(path[0]);
+        for (int i = 1; i < path.length; i++) {
+            builder.append('/').append(path[i]);
+        }
+        return builder.toString();
+    }
+
+    //must hold mLock, so events queue in commit order
+    private void enqueue(Runnable event) {
+        synchronized (mEvents) {
+            mEvents.add(event);
+        }
+    }
+
+    private void dispatchEvents() {
+        synchronized (mEvents) {
+            if (mDispatching || mEvents.isEmpty()) {
+                return;
+            }
+            mDispatching = true;
+        }
+        if (mExecutor != null) {
+            mExecutor.execute(mDrainEvents);
+        } else {
+            mDrainEvents.run();
+        }
+    }
+
+    private final Runnable mDrainEvents = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable event;
+                synchronized (mEvents) {
+                    event = mEvents.poll();
+                    if (event == null) {
+                        mDispatching = false;
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    //hand the remaining events over before failing
+                    synchronized (mEvents) {
+                        mDispatching = false;
+                    }
+                    dispatchEvents();
+                    throw e;
+                }
+            }
+        }
+    };
+
+    private class Registration {
+        final String[] mPath;
+        final MemoryFilter mFilter;
+        final StoreChildListener mChildListener;
+        final StoreValueListener mValueListener;
+        //cleared on removal, so queued events are dropped
+        volatile boolean mActive = true;
+
+        Registration(String[] path, MemoryFilter filter,
+                     StoreChildListener childListener, StoreValueListener valueListener) {
+            this.mPath = path;
+            this.mFilter = filter;
+            this.mChildListener = childListener;
+            this.mValueListener = valueListener;
+        }
+
+        void collectInitialEvents(MemoryNode root) {
+            MemoryNode node = root.get(mPath);
+            if (mValueListener != null) {
+                enqueueValue(new MemorySnapshot(MemoryStore.this, mPath, filter(node)));
+                return;
+            }
+            String previousKey = null;
+            for (int i = 0; i < node.getChildCount(); i++) {
+                MemoryNode child = node.getChild(i);
+                if (matches(child)) {
+                    enqueueChild(EVENT_ADDED, snapshot(node.getKey(i), child), previousKey);
+                    previousKey = node.getKey(i);
+                }
+            }
+        }
+
+        //changedKeys lists the only children that may have changed, or is null to compare all
+        void collectEvents(MemoryNode previousRoot, MemoryNode currentRoot, Set<String> changedKeys) {
+            MemoryNode before = previousRoot.get(mPath);
+            MemoryNode after = currentRoot.get(mPath);
+            if (before == after) {
+                return;
+            }
+            if (mValueListener != null) {
+                MemoryNode filtered = filter(after);
+                if (mFilter == null || !filter(before).hasSameChildren(filtered)) {
+                    enqueueValue(new MemorySnapshot(MemoryStore.this, mPath, filtered));
+                }
+                return;
+            }
+            if (changedKeys != null) {
+                for (String key : changedKeys) {
+                    collectChildEvents(key, before.getChild(key), after.getChild(key), after, after.indexOf(key));
+                }
+                return;
+            }
+            //merge the sorted children of both sides
+            int i = 0;
+            int j = 0;
+            while (i < before.getChildCount() || j < after.getChildCount()) {
+                int order = i == before.getChildCount() ? 1
+                        : j == after.getChildCount() ? -1
+                        : before.getKey(i).compareTo(after.getKey(j));
+                if (order < 0) {
+                    collectChildEvents(before.getKey(i), before.getChild(i), MemoryNode.EMPTY, after, -1);
+                    i++;
+                } else if (order > 0) {
+                    collectChildEvents(after.getKey(j), MemoryNode.EMPTY, after.getChild(j), after, j);
+                    j++;
+                } else {
+                    collectChildEvents(after.getKey(j), before.getChild(i), after.getChild(j), after, j);
+                    i++;
+                    j++;
+                }
+            }
+        }
+
+        private void collectChildEvents(String key, MemoryNode before, MemoryNode after, MemoryNode parent, int index) {
+            if (before == after) {
+                return;
+            }
+            boolean wasIncluded = matches(before);
+            boolean isIncluded = matches(after);
+            if (isIncluded) {
+                enqueueChild(wasIncluded ? EVENT_CHANGED : EVENT_ADDED, snapshot(key, after), getPreviousKey(parent, index));
+            } else if (wasIncluded) {
+                enqueueChild(EVENT_REMOVED, snapshot(key, before), null);
+            }
+        }
+
+        private String getPreviousKey(MemoryNode parent, int index) {
+            for (int i = index - 1; i >= 0; i--) {
+                if (matches(parent.getChild(i))) {
+                    return parent.getKey(i);
+                }
+            }
+            return null;
+        }
+
+        private boolean matches(MemoryNode child) {
+            return mFilter == null ? child.exists() : mFilter.matches(child);
+        }
+
+        private MemoryNode filter(MemoryNode node) {
+            return mFilter == null ? node : node.filter(mFilter);
+        }
+
+        private StoreSnapshot snapshot(String key, MemoryNode node) {
+            String[] path = new String[mPath.length + 1];
+            System.arraycopy(mPath, 0, path, 0, mPath.length);
+            path[mPath.length] = key;
+            return new MemorySnapshot(MemoryStore.this, path, node);
+        }
+
+        private void enqueueValue(final StoreSnapshot snapshot) {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    if (mActive) {
+                        mValueListener.onDataChange(snapshot);
+                    }
+                }
+            });
+        }
+
+        private void enqueueChild(final int event, final StoreSnapshot snapshot, final String previousKey) {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mActive) {
+                        return;
+                    }
+                    switch (event) {
+                        case EVENT_ADDED:
+                            mChildListener.onChildAdded(snapshot, previousKey);
+                            break;
+                        case EVENT_CHANGED:
+                            mChildListener.onChildChanged(snapshot, previousKey);
+                            break;
+                        case EVENT_REMOVED:
+                            mChildListener.onChildRemoved(snapshot);
+                            break;
+                    }
+                }
+            });
+        }
+    }
+
+    private static final int EVENT_ADDED = 0;
+    private static final int EVENT_CHANGED = 1;
+    private static final int EVENT_REMOVED = 2;
+}
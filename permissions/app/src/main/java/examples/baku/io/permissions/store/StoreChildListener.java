@@ -0,0 +1,15 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+public interface StoreChildListener {
+    void onChildAdded(StoreSnapshot snapshot, String previousChildKey);
+
+    void onChildChanged(StoreSnapshot snapshot, String previousChildKey);
+
+    void onChildRemoved(StoreSnapshot snapshot);
+
+    void onCancelled(StoreError error);
+}
@@ -0,0 +1,36 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+public class StoreError {
+
+    public static final int MAX_RETRIES = -8;
+    public static final int UNKNOWN_ERROR = -999;
+
+    private final int code;
+    private final String message;
+
+    public StoreError(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public StoreException toException() {
+        return new StoreException(message);
+    }
+
+    @Override
+    public String toString() {
+        return "StoreError(" + code + ": " + message + ")";
+    }
+}
@@ -0,0 +1,25 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+/**
+ * Value being modified by a transaction.
+ */
+public interface StoreMutableData {
+
+    String getKey();
+
+    StoreMutableData child(String path);
+
+    boolean hasChild(String path);
+
+    Iterable<StoreMutableData> getChildren();
+
+    Object getValue();
+
+    <T> T getValue(Class<T> valueType);
+
+    void setValue(Object value);
+}
@@ -0,0 +1,39 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+/**
+ * Listenable view of a location in a tree store, optionally filtered to some of its children.
+ */
+public interface StoreQuery {
+
+    //called with every existing child, then with each child added, changed or removed
+    StoreChildListener addChildListener(StoreChildListener listener);
+
+    //called with the current value, then on every change
+    StoreValueListener addValueListener(StoreValueListener listener);
+
+    //called once, with the current value
+    void addSingleValueListener(StoreValueListener listener);
+
+    //removes the listener from this location, including registrations made through its queries
+    void removeListener(StoreChildListener listener);
+
+    void removeListener(StoreValueListener listener);
+
+    //restrict to children with a value at key. ordering follows the backend.
+    StoreQuery orderByChild(String key);
+
+    //restrict to children whose orderByChild value equals value
+    StoreQuery equalTo(String value);
+
+    //restrict to children whose orderByChild value is at least value
+    StoreQuery startAt(double value);
+
+    //restrict to children whose orderByChild value is at most value
+    StoreQuery endAt(double value);
+
+    StoreReference getRef();
+}
@@ -0,0 +1,33 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.util.Map;
+
+/**
+ * Location in a tree store. Values are strings, booleans, numbers, maps of values, or objects
+ * with bean properties, stored as maps of their properties.
+ */
+public interface StoreReference extends StoreQuery {
+
+    StoreReference child(String path);
+
+    //new child with a unique key, ordered after the children pushed before it
+    StoreReference push();
+
+    //last path segment, null at the root
+    String getKey();
+
+    //replace the value at this location, removing it if value is null
+    void setValue(Object value);
+
+    void removeValue();
+
+    //replace the values at many paths relative to this location in a single change
+    void updateChildren(Map<String, Object> values);
+
+    //listeners only see the value the transaction commits, not its attempts
+    void runTransaction(StoreTransaction transaction);
+}
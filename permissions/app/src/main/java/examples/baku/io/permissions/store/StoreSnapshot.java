@@ -0,0 +1,31 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+/**
+ * Immutable value of a store location at the time of an event.
+ */
+public interface StoreSnapshot {
+
+    String getKey();
+
+    boolean exists();
+
+    StoreSnapshot child(String path);
+
+    boolean hasChild(String path);
+
+    Iterable<StoreSnapshot> getChildren();
+
+    long getChildrenCount();
+
+    //plain value, a Map for locations with children
+    Object getValue();
+
+    //throws StoreException if the value can't be converted
+    <T> T getValue(Class<T> valueType);
+
+    StoreReference getRef();
+}
@@ -0,0 +1,17 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+/**
+ * Atomic read-modify-write of a store location.
+ */
+public interface StoreTransaction {
+
+    //update data in place and return true to commit, or false to abort. called again with
+    //fresh data if the location changed while running, so it must not have side effects.
+    boolean doTransaction(StoreMutableData data);
+
+    void onComplete(StoreError error, boolean committed, StoreSnapshot snapshot);
+}
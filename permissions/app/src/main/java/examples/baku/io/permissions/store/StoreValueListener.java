@@ -0,0 +1,11 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+public interface StoreValueListener {
+    void onDataChange(StoreSnapshot snapshot);
+
+    void onCancelled(StoreError error);
+}
@@ -0,0 +1,303 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.store;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts values to and from the plain form kept by local stores: null, String, Boolean, Long,
+ * Double, or a Map from keys to plain values. Objects are mapped through their bean properties,
+ * lists to maps keyed by index, like the Firebase client does.
+ */
+final class StoreValues {
+
+    //<class, properties> bean properties, resolved once per class
+    private static final Map<Class<?>, Map<String, Property>> sProperties = new ConcurrentHashMap<>();
+
+    private StoreValues() {
+    }
+
+    static Object toPlain(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof Long || value instanceof Double) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        if (value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                put(result, String.valueOf(entry.getKey()), entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            int index = 0;
+            for (Object element : (Collection<?>) value) {
+                put(result, Integer.toString(index++), element);
+            }
+        } else if (value.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                put(result, Integer.toString(i), Array.get(value, i));
+            }
+        } else {
+            for (Map.Entry<String, Property> entry : getProperties(value.getClass()).entrySet()) {
+                if (entry.getValue().isReadable()) {
+                    put(result, entry.getKey(), entry.getValue().get(value));
+                }
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    private static void put(Map<String, Object> result, String key, Object value) {
+        Object plain = toPlain(value);
+        if (plain != null) {
+            result.put(key, plain);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T fromPlain(Object plain, Class<T> type) {
+        return (T) fromPlain(plain, (Type) type);
+    }
+
+    static Object fromPlain(Object plain, Type type) {
+        if (plain == null) {
+            return null;
+        }
+        Class<?> raw = getRawType(type);
+        if (raw == Object.class) {
+            return plain;
+        }
+        if (raw == String.class) {
+            if (plain instanceof String) {
+                return plain;
+            }
+        } else if (raw == Boolean.class || raw == boolean.class) {
+            if (plain instanceof Boolean) {
+                return plain;
+            }
+        } else if (isNumber(raw)) {
+            if (plain instanceof Number) {
+                return toNumber((Number) plain, raw);
+            }
+        } else if (raw.isEnum()) {
+            if (plain instanceof String) {
+                return toEnum(raw, (String) plain);
+            }
+        } else if (plain instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) plain;
+            if (Map.class.isAssignableFrom(raw)) {
+                Type valueType = getTypeArgument(type, 1);
+                Map<String, Object> result = new HashMap<>();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    result.put((String) entry.getKey(), fromPlain(entry.getValue(), valueType));
+                }
+                return result;
+            }
+            if (List.class.isAssignableFrom(raw)) {
+                Type elementType = getTypeArgument(type, 0);
+                List<Object> result = new ArrayList<>();
+                for (Object element : map.values()) {
+                    result.add(fromPlain(element, elementType));
+                }
+                return result;
+            }
+            return toBean(map, raw);
+        }
+        throw new StoreException("Failed to convert value of type " + plain.getClass().getName() + " to " + raw.getName());
+    }
+
+    private static boolean isNumber(Class<?> type) {
+        return Number.class.isAssignableFrom(type) || (type.isPrimitive() && type != boolean.class && type != char.class);
+    }
+
+    private static Object toNumber(Number value, Class<?> type) {
+        if (type == Integer.class || type == int.class) {
+            return value.intValue();
+        } else if (type == Long.class || type == long.class) {
+            return value.longValue();
+        } else if (type == Double.class || type == double.class) {
+            return value.doubleValue();
+        } else if (type == Float.class || type == float.class) {
+            return value.floatValue();
+        } else if (type == Short.class || type == short.class) {
+            return value.shortValue();
+        } else if (type == Byte.class || type == byte.class) {
+            return value.byteValue();
+        }
+        return value;
+    }
+
+    private static Object toEnum(Class<?> type, String name) {
+        for (Object constant : type.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) {
+                return constant;
+            }
+        }
+        throw new StoreException("Could not find enum value of " + type.getName() + " for value " + name);
+    }
+
+    private static Object toBean(Map<?, ?> values, Class<?> type) {
+        Object result;
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            result = constructor.newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new StoreException("Class " + type.getName() + " is missing a constructor with no arguments", e);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new StoreException("Could not create " + type.getName(), e);
+        }
+        Map<String, Property> properties = getProperties(type);
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            Property property = properties.get(entry.getKey());
+            if (property != null && property.isWritable()) {   //unknown properties are ignored
+                property.set(result, fromPlain(entry.getValue(), property.getType()));
+            }
+        }
+        return result;
+    }
+
+    private static Class<?> getRawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        return Object.class;
+    }
+
+    private static Type getTypeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if (index < arguments.length) {
+                return arguments[index];
+            }
+        }
+        return Object.class;
+    }
+
+    private static Map<String, Property> getProperties(Class<?> type) {
+        Map<String, Property> result = sProperties.get(type);
+        if (result == null) {
+            result = resolveProperties(type);
+            sProperties.put(type, result);
+        }
+        return result;
+    }
+
+    private static Map<String, Property> resolveProperties(Class<?> type) {
+        Map<String, Property> result = new LinkedHashMap<>();
+        for (Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                getOrCreate(result, field.getName()).mField = field;
+            }
+        }
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getDeclaringClass() == Object.class) {
+                continue;
+            }
+            String name = method.getName();
+            int parameters = method.getParameterTypes().length;
+            if (parameters == 0 && method.getReturnType() != void.class) {
+                String property = getPropertyName(name, "get");
+                if (property == null && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+                    property = getPropertyName(name, "is");
+                }
+                if (property != null) {
+                    getOrCreate(result, property).mGetter = method;
+                }
+            } else if (parameters == 1) {
+                String property = getPropertyName(name, "set");
+                if (property != null) {
+                    getOrCreate(result, property).mSetter = method;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getPropertyName(String methodName, String prefix) {
+        if (!methodName.startsWith(prefix) || methodName.length() == prefix.length()) {
+            return null;
+        }
+        String name = methodName.substring(prefix.length());
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static Property getOrCreate(Map<String, Property> properties, String name) {
+        Property result = properties.get(name);
+        if (result == null) {
+            result = new Property(name);
+            properties.put(name, result);
+        }
+        return result;
+    }
+
+    private static class Property {
+        final String mName;
+        Field mField;
+        Method mGetter;
+        Method mSetter;
+
+        Property(String name) {
+            this.mName = name;
+        }
+
+        boolean isReadable() {
+            return mGetter != null || mField != null;
+        }
+
+        boolean isWritable() {
+            return mSetter != null || (mField != null && !Modifier.isFinal(mField.getModifiers()));
+        }
+
+        Type getType() {
+            return mSetter != null ? mSetter.getGenericParameterTypes()[0] : mField.getGenericType();
+        }
+
+        Object get(Object target) {
+            try {
+                return mGetter != null ? mGetter.invoke(target) : mField.get(target);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new StoreException("Could not read property " + mName, e);
+            }
+        }
+
+        void set(Object target, Object value) {
+            try {
+                if (mSetter != null) {
+                    mSetter.invoke(target, value);
+                } else {
+                    mField.set(target, value);
+                }
+            } catch (IllegalAccessException | InvocationTargetException | IllegalArgumentException e) {
+                throw new StoreException("Could not write property " + mName, e);
+            }
+        }
+    }
+}
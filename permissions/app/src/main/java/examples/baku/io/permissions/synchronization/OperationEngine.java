@@ -0,0 +1,184 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.bitbucket.cowwoc.diffmatchpatch.DiffMatchPatch;
+
+/**
+ * Sync engine exchanging {@link TextOperation}s, merged by operational transformation.
+ * Concurrent edits always converge, and applying one costs O(log n) per component, not a copy
+ * of the text.
+ */
+public class OperationEngine implements SyncEngine<TextOperation> {
+
+    //a tag per component, inserts followed by their UTF-8 bytes
+    private static final int KIND_RETAIN = 0;
+    private static final int KIND_INSERT = 1;
+    private static final int KIND_DELETE = 2;
+
+    private final DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+
+    @Override
+    public TextOperation diff(Rope text, Rope newText) {
+        String original = text.toString();
+        String edited = newText.toString();
+        if (original.equals(edited)) {
+            return null;
+        }
+        //a minimal diff, so coalesced edits don't replace the text between them and clobber
+        //concurrent edits there
+        TextOperation result = new TextOperation();
+        for (DiffMatchPatch.Diff diff : diffMatchPatch.diffMain(original, edited, false)) {
+            switch (diff.operation) {
+                case EQUAL:
+                    result.retain(diff.text.length());
+                    break;
+                case INSERT:
+                    result.insert(diff.text);
+                    break;
+                case DELETE:
+                    result.delete(diff.text.length());
+                    break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public TextOperation edit(Rope text, int offset, int removed, String inserted) {
+        if (offset < 0 || removed < 0 || offset + removed > text.length()) {
+            throw new IllegalArgumentException("span " + offset + "+" + removed + " of length " + text.length());
+        }
+        if (removed == 0 && inserted.isEmpty()) {
+            return null;
+        }
+        return new TextOperation()
+                .retain(offset)
+                .insert(inserted)
+                .delete(removed)
+                .retain(text.length() - offset - removed);
+    }
+
+    @Override
+    public Rope apply(Rope text, TextOperation change) {
+        return change.apply(text);
+    }
+
+    @Override
+    public TextOperation compose(Rope text, TextOperation first, TextOperation second) {
+        TextOperation result = first.compose(second);
+        return result.isNoop() ? null : result;
+    }
+
+    @Override
+    public TextOperation transform(Rope text, TextOperation change, TextOperation other, boolean priority) {
+        TextOperation result = priority
+                ? TextOperation.transform(change, other)[0]
+                : TextOperation.transform(other, change)[1];
+        return result.isNoop() ? null : result;
+    }
+
+    @Override
+    public void edits(Rope text, Rope newText, TextOperation change, SyncText.OnTextEditListener listener) {
+        if (change == null) {
+            return;
+        }
+        EditReporter reporter = new EditReporter(listener);
+        change.visit(reporter);
+        reporter.flush();
+    }
+
+    @Override
+    public String encode(TextOperation change) {
+        return change.toString();
+    }
+
+    @Override
+    public TextOperation decode(String encoded) {
+        return TextOperation.parse(encoded);
+    }
+
+    @Override
+    public byte[] encodeBinary(TextOperation change) {
+        final PatchWriter writer = new PatchWriter();
+        change.visit(new TextOperation.Visitor() {
+            @Override
+            public void retain(int count) {
+                writer.writeTag(KIND_RETAIN, count);
+            }
+
+            @Override
+            public void insert(String text) {
+                writer.writeString(KIND_INSERT, text);
+            }
+
+            @Override
+            public void delete(int count) {
+                writer.writeTag(KIND_DELETE, count);
+            }
+        });
+        return writer.toByteArray();
+    }
+
+    @Override
+    public TextOperation decodeBinary(byte[] encoded) {
+        TextOperation result = new TextOperation();
+        PatchReader reader = new PatchReader(encoded);
+        while (reader.hasRemaining()) {
+            long tag = reader.readTag();
+            switch (PatchReader.kind(tag)) {
+                case KIND_RETAIN:
+                    result.retain(PatchReader.count(tag));
+                    break;
+                case KIND_INSERT:
+                    result.insert(reader.readString(PatchReader.count(tag)));
+                    break;
+                case KIND_DELETE:
+                    result.delete(PatchReader.count(tag));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown component " + tag);
+            }
+        }
+        return result;
+    }
+
+    //turns components into spans, an insert and the delete following it making one span
+    private static class EditReporter implements TextOperation.Visitor {
+        final SyncText.OnTextEditListener listener;
+        int offset;
+        String inserted = "";
+
+        EditReporter(SyncText.OnTextEditListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void retain(int count) {
+            flush();
+            offset += count;
+        }
+
+        @Override
+        public void insert(String text) {
+            inserted = text;
+        }
+
+        @Override
+        public void delete(int count) {
+            listener.onTextEdit(offset, count, inserted);
+            offset += inserted.length();
+            inserted = "";
+        }
+
+        void flush() {
+            if (!inserted.isEmpty()) {
+                listener.onTextEdit(offset, 0, inserted);
+                offset += inserted.length();
+                inserted = "";
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.bitbucket.cowwoc.diffmatchpatch.DiffMatchPatch;
+
+import java.util.LinkedList;
+
+/**
+ * Sync engine exchanging diff-match-patch patches.
+ *
+ * Patches locate their changes by context, so transforming one re-applies it to the other
+ * side's text, fuzzily. Concurrent edits to the same words may be merged imperfectly.
+ */
+public class PatchEngine implements SyncEngine<LinkedList<DiffMatchPatch.Patch>> {
+
+    //per patch its offsets, lengths and diff count, then a tagged string per diff
+    private static final int KIND_EQUAL = 0;
+    private static final int KIND_INSERT = 1;
+    private static final int KIND_DELETE = 2;
+
+    private final DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> diff(Rope text, Rope newText) {
+        LinkedList<DiffMatchPatch.Patch> patches = diffMatchPatch.patchMake(text.toString(), newText.toString());
+        return patches.isEmpty() ? null : patches;
+    }
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> edit(Rope text, int offset, int removed, String inserted) {
+        String original = text.toString();
+        if (offset < 0 || removed < 0 || offset + removed > original.length()) {
+            throw new IllegalArgumentException("span " + offset + "+" + removed + " of length " + original.length());
+        }
+        LinkedList<DiffMatchPatch.Diff> diffs = new LinkedList<>();
+        addDiff(diffs, DiffMatchPatch.Operation.EQUAL, original.substring(0, offset));
+        addDiff(diffs, DiffMatchPatch.Operation.DELETE, original.substring(offset, offset + removed));
+        addDiff(diffs, DiffMatchPatch.Operation.INSERT, inserted);
+        addDiff(diffs, DiffMatchPatch.Operation.EQUAL, original.substring(offset + removed));
+        LinkedList<DiffMatchPatch.Patch> patches = diffMatchPatch.patchMake(original, diffs);
+        return patches.isEmpty() ? null : patches;
+    }
+
+    private static void addDiff(LinkedList<DiffMatchPatch.Diff> diffs, DiffMatchPatch.Operation operation, String text) {
+        if (!text.isEmpty()) {
+            diffs.add(new DiffMatchPatch.Diff(operation, text));
+        }
+    }
+
+    @Override
+    public Rope apply(Rope text, LinkedList<DiffMatchPatch.Patch> change) {
+        Object[] results = diffMatchPatch.patchApply(new LinkedList<>(change), text.toString());
+        return Rope.of((String) results[0]);
+    }
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> compose(Rope text, LinkedList<DiffMatchPatch.Patch> first, LinkedList<DiffMatchPatch.Patch> second) {
+        return diff(text, apply(apply(text, first), second));
+    }
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> transform(Rope text, LinkedList<DiffMatchPatch.Patch> change,
+                                                      LinkedList<DiffMatchPatch.Patch> other, boolean priority) {
+        Rope rebased = apply(text, other);
+        return diff(rebased, apply(rebased, change));
+    }
+
+    //patches don't say where they applied, so the texts are compared instead
+    @Override
+    public void edits(Rope text, Rope newText, LinkedList<DiffMatchPatch.Patch> change, SyncText.OnTextEditListener listener) {
+        int offset = 0;
+        int removed = 0;
+        StringBuilder inserted = new StringBuilder();
+        for (DiffMatchPatch.Diff diff : diffMatchPatch.diffMain(text.toString(), newText.toString(), false)) {
+            switch (diff.operation) {
+                case EQUAL:
+                    if (removed > 0 || inserted.length() > 0) {
+                        listener.onTextEdit(offset, removed, inserted.toString());
+                        offset += inserted.length();
+                        removed = 0;
+                        inserted.setLength(0);
+                    }
+                    offset += diff.text.length();
+                    break;
+                case INSERT:
+                    inserted.append(diff.text);
+                    break;
+                case DELETE:
+                    removed += diff.text.length();
+                    break;
+            }
+        }
+        if (removed > 0 || inserted.length() > 0) {
+            listener.onTextEdit(offset, removed, inserted.toString());
+        }
+    }
+
+    @Override
+    public String encode(LinkedList<DiffMatchPatch.Patch> change) {
+        return diffMatchPatch.patchToText(change);
+    }
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> decode(String encoded) {
+        return new LinkedList<>(diffMatchPatch.patchFromText(encoded));
+    }
+
+    @Override
+    public byte[] encodeBinary(LinkedList<DiffMatchPatch.Patch> change) {
+        PatchWriter writer = new PatchWriter();
+        for (DiffMatchPatch.Patch patch : change) {
+            writer.writeVarint(patch.start1);
+            writer.writeVarint(patch.start2);
+            writer.writeVarint(patch.length1);
+            writer.writeVarint(patch.length2);
+            writer.writeVarint(patch.diffs.size());
+            for (DiffMatchPatch.Diff diff : patch.diffs) {
+                int kind = diff.operation == DiffMatchPatch.Operation.EQUAL ? KIND_EQUAL
+                        : diff.operation == DiffMatchPatch.Operation.INSERT ? KIND_INSERT
+                        : KIND_DELETE;
+                writer.writeString(kind, diff.text);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public LinkedList<DiffMatchPatch.Patch> decodeBinary(byte[] encoded) {
+        LinkedList<DiffMatchPatch.Patch> result = new LinkedList<>();
+        PatchReader reader = new PatchReader(encoded);
+        while (reader.hasRemaining()) {
+            DiffMatchPatch.Patch patch = new DiffMatchPatch.Patch();
+            patch.start1 = reader.readVarint();
+            patch.start2 = reader.readVarint();
+            patch.length1 = reader.readVarint();
+            patch.length2 = reader.readVarint();
+            for (int i = reader.readVarint(); i > 0; i--) {
+                long tag = reader.readTag();
+                DiffMatchPatch.Operation operation;
+                switch (PatchReader.kind(tag)) {
+                    case KIND_EQUAL:
+                        operation = DiffMatchPatch.Operation.EQUAL;
+                        break;
+                    case KIND_INSERT:
+                        operation = DiffMatchPatch.Operation.INSERT;
+                        break;
+                    case KIND_DELETE:
+                        operation = DiffMatchPatch.Operation.DELETE;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown diff " + tag);
+                }
+                patch.diffs.add(new DiffMatchPatch.Diff(operation, reader.readString(PatchReader.count(tag))));
+            }
+            result.add(patch);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads what {@link PatchWriter} wrote. Truncated or malformed input throws
+ * IllegalArgumentException, like the text formats do.
+ */
+final class PatchReader {
+
+    private final byte[] mBytes;
+    private int mPosition;
+
+    PatchReader(byte[] bytes) {
+        mBytes = bytes;
+    }
+
+    boolean hasRemaining() {
+        return mPosition < mBytes.length;
+    }
+
+    int readVarint() {
+        return (int) readUnsigned(31);
+    }
+
+    //a tag written by PatchWriter.writeTag, its count being up to an int
+    long readTag() {
+        return readUnsigned(31 + PatchWriter.KIND_BITS);
+    }
+
+    private long readUnsigned(int bits) {
+        long value = 0;
+        for (int shift = 0; shift < bits; shift += 7) {
+            if (mPosition >= mBytes.length) {
+                throw new IllegalArgumentException("truncated varint at " + mPosition);
+            }
+            byte b = mBytes[mPosition++];
+            long chunk = b & 0x7f;
+            if (bits - shift < 7 && chunk >>> (bits - shift) != 0) {
+                throw new IllegalArgumentException("varint out of range at " + mPosition);
+            }
+            value |= chunk << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long at " + mPosition);
+    }
+
+    //kind of a tag read with readTag
+    static int kind(long tag) {
+        return (int) tag & ((1 << PatchWriter.KIND_BITS) - 1);
+    }
+
+    static int count(long tag) {
+        return (int) (tag >>> PatchWriter.KIND_BITS);
+    }
+
+    String readString(int length) {
+        if (length > mBytes.length - mPosition) {
+            throw new IllegalArgumentException("truncated string at " + mPosition);
+        }
+        String result = new String(mBytes, mPosition, length, StandardCharsets.UTF_8);
+        mPosition += length;
+        return result;
+    }
+}
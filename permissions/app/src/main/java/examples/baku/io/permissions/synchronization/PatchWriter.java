@@ -0,0 +1,49 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the binary patch format: unsigned varints, and strings as raw UTF-8 after their byte
+ * length. A tag packs a small kind into the low bits of a varint, next to a count, so a tag
+ * takes up to KIND_BITS more bits than an int.
+ */
+final class PatchWriter {
+
+    static final int KIND_BITS = 2;
+
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+    void writeVarint(int value) {
+        if (value < 0) throw new IllegalArgumentException("negative varint " + value);
+        writeUnsigned(value);
+    }
+
+    void writeTag(int kind, int count) {
+        if (count < 0) throw new IllegalArgumentException("negative count " + count);
+        writeUnsigned((long) count << KIND_BITS | kind);
+    }
+
+    private void writeUnsigned(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mOut.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+
+    //tag counting the UTF-8 bytes of text, followed by them
+    void writeString(int kind, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeTag(kind, bytes.length);
+        mOut.write(bytes, 0, bytes.length);
+    }
+
+    byte[] toByteArray() {
+        return mOut.toByteArray();
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+/**
+ * Immutable text stored as a balanced tree of short strings.
+ *
+ * Replacing a span shares every untouched leaf with the original, so edits and slices cost
+ * O(log n) instead of copying the text. Converting to a String is O(n), and is only needed
+ * where a whole text leaves SyncText.
+ */
+public final class Rope implements CharSequence {
+
+    //longest leaf string. shorter leaves are merged when concatenated
+    static final int MAX_LEAF = 512;
+
+    public static final Rope EMPTY = new Rope("");
+
+    private final String mLeaf; //null for branches
+    private final Rope mLeft;
+    private final Rope mRight;
+    private final int mLength;
+    private final int mDepth;
+
+    private Rope(String leaf) {
+        mLeaf = leaf;
+        mLeft = null;
+        mRight = null;
+        mLength = leaf.length();
+        mDepth = 0;
+    }
+
+    private Rope(Rope left, Rope right) {
+        mLeaf = null;
+        mLeft = left;
+        mRight = right;
+        mLength = left.mLength + right.mLength;
+        mDepth = Math.max(left.mDepth, right.mDepth) + 1;
+    }
+
+    public static Rope of(CharSequence text) {
+        if (text instanceof Rope) {
+            return (Rope) text;
+        }
+        return build(text, 0, text.length());
+    }
+
+    private static Rope build(CharSequence text, int start, int end) {
+        if (end - start <= MAX_LEAF) {
+            return start == end ? EMPTY : new Rope(text.subSequence(start, end).toString());
+        }
+        int middle = (start + end) >>> 1;
+        return new Rope(build(text, start, middle), build(text, middle, end));
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + " of length " + mLength);
+        }
+        Rope node = this;
+        while (node.mLeaf == null) {
+            if (index < node.mLeft.mLength) {
+                node = node.mLeft;
+            } else {
+                index -= node.mLeft.mLength;
+                node = node.mRight;
+            }
+        }
+        return node.mLeaf.charAt(index);
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException("span " + start + "-" + end + " of length " + mLength);
+        }
+        return slice(start, end);
+    }
+
+    private Rope slice(int start, int end) {
+        if (start == 0 && end == mLength) {
+            return this;
+        }
+        if (start == end) {
+            return EMPTY;
+        }
+        if (mLeaf != null) {
+            return new Rope(mLeaf.substring(start, end));
+        }
+        int split = mLeft.mLength;
+        if (end <= split) {
+            return mLeft.slice(start, end);
+        }
+        if (start >= split) {
+            return mRight.slice(start - split, end - split);
+        }
+        return join(mLeft.slice(start, split), mRight.slice(0, end - split));
+    }
+
+    public Rope concat(CharSequence text) {
+        return join(this, of(text));
+    }
+
+    //text with removed chars at offset replaced by inserted.
+    //throws IndexOutOfBoundsException if the span isn't inside the text, like subSequence
+    public Rope replace(int offset, int removed, CharSequence inserted) {
+        if (offset < 0 || removed < 0 || removed > mLength - offset) {
+            throw new IndexOutOfBoundsException("span " + offset + "+" + removed + " of length " + mLength);
+        }
+        Rope result = join(slice(0, offset), of(inserted));
+        return join(result, slice(offset + removed, mLength));
+    }
+
+    //concatenation keeping the depths of sibling subtrees within one of each other
+    private static Rope join(Rope left, Rope right) {
+        if (left.mLength == 0) {
+            return right;
+        }
+        if (right.mLength == 0) {
+            return left;
+        }
+        if (left.mLeaf != null && right.mLeaf != null && left.mLength + right.mLength <= MAX_LEAF) {
+            return new Rope(left.mLeaf + right.mLeaf);
+        }
+        if (left.mDepth > right.mDepth + 1) {
+            return balance(left.mLeft, join(left.mRight, right));
+        }
+        if (right.mDepth > left.mDepth + 1) {
+            return balance(join(left, right.mLeft), right.mRight);
+        }
+        return new Rope(left, right);
+    }
+
+    //branch of two subtrees whose depths differ by at most two, rotated back into balance
+    private static Rope balance(Rope left, Rope right) {
+        if (left.mDepth > right.mDepth + 1) {
+            if (left.mLeft.mDepth >= left.mRight.mDepth) {
+                return new Rope(left.mLeft, new Rope(left.mRight, right));
+            }
+            return new Rope(new Rope(left.mLeft, left.mRight.mLeft), new Rope(left.mRight.mRight, right));
+        }
+        if (right.mDepth > left.mDepth + 1) {
+            if (right.mRight.mDepth >= right.mLeft.mDepth) {
+                return new Rope(new Rope(left, right.mLeft), right.mRight);
+            }
+            return new Rope(new Rope(left, right.mLeft.mLeft), new Rope(right.mLeft.mRight, right.mRight));
+        }
+        return new Rope(left, right);
+    }
+
+    int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(mLength);
+        appendTo(result);
+        return result.toString();
+    }
+
+    private void appendTo(StringBuilder builder) {
+        if (mLeaf != null) {
+            builder.append(mLeaf);
+        } else {
+            mLeft.appendTo(builder);
+            mRight.appendTo(builder);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared executor.
+ *
+ * Each task is handed to the shared executor separately, so a busy queue can't hold a pool thread
+ * while other queues wait. Once stopped, pending tasks are dropped and new ones ignored.
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mScheduled;
+    private boolean mStopped;
+
+    SerialExecutor(Executor executor) {
+        if (executor == null) throw new IllegalArgumentException("null executor");
+        this.mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) throw new IllegalArgumentException("null task");
+        synchronized (mTasks) {
+            if (mStopped) {
+                return;
+            }
+            mTasks.add(task);
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.execute(mRunNext);
+            }
+        }
+    }
+
+    void stop() {
+        synchronized (mTasks) {
+            mStopped = true;
+            mTasks.clear();
+        }
+    }
+
+    boolean isStopped() {
+        synchronized (mTasks) {
+            return mStopped;
+        }
+    }
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (mTasks) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (mTasks) {
+                    if (mTasks.isEmpty()) {
+                        mScheduled = false;
+                    } else {
+                        mExecutor.execute(mRunNext);
+                    }
+                }
+            }
+        }
+    };
+}
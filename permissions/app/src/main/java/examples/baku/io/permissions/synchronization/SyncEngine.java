@@ -0,0 +1,51 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+/**
+ * How SyncText represents edits, and merges edits made concurrently.
+ *
+ * Every replica applies the same edits in the same order. An edit made against a text that
+ * has moved on since is transformed over the edits applied in between.
+ *
+ * @param <C> type of an edit
+ */
+public interface SyncEngine<C> {
+
+    //edit turning text into newText, null if they are equal
+    C diff(Rope text, Rope newText);
+
+    //edit replacing removed chars at offset with inserted, null if that changes nothing.
+    //throws IllegalArgumentException if the span isn't inside text
+    C edit(Rope text, int offset, int removed, String inserted);
+
+    //throws IllegalArgumentException if change doesn't fit text
+    Rope apply(Rope text, C change);
+
+    //edit with the effect of first followed by second, first being made against text, or null
+    //if they cancel out
+    C compose(Rope text, C first, C second);
+
+    //change rebased to follow other, both made against text, or null if nothing is left of it.
+    //where both insert at the same place, change's insert goes first if it has priority.
+    C transform(Rope text, C change, C other, boolean priority);
+
+    //report the spans change replaced turning text into newText, in order. each offset is into
+    //the text with the spans before it already replaced. change is null if transforming left
+    //nothing of it.
+    void edits(Rope text, Rope newText, C change, SyncText.OnTextEditListener listener);
+
+    //text format, readable by every version of SyncText
+    String encode(C change);
+
+    //throws IllegalArgumentException if encoded is malformed
+    C decode(String encoded);
+
+    //compact binary format, read with a PatchReader
+    byte[] encodeBinary(C change);
+
+    //throws IllegalArgumentException if encoded is malformed
+    C decodeBinary(byte[] encoded);
+}
@@ -4,197 +4,782 @@
 
 package examples.baku.io.permissions.synchronization;
 
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.MutableData;
-import com.google.firebase.database.Transaction;
-import com.google.firebase.database.ValueEventListener;
-
-import org.bitbucket.cowwoc.diffmatchpatch.DiffMatchPatch;
-
-import java.util.LinkedList;
+import com.google.common.io.BaseEncoding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import examples.baku.io.permissions.store.StoreChildListener;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreException;
+import examples.baku.io.permissions.store.StoreMutableData;
+import examples.baku.io.permissions.store.StoreQuery;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreTransaction;
+import examples.baku.io.permissions.store.StoreValueListener;
 
 /**
  * Created by phamilton on 6/24/16.
+ *
+ * Text shared by every instance linked to the same location. Edits are kept as a log of
+ * patches, one per version: an instance claims the next version for its edit, and when another
+ * instance got there first, rebases the edit over the winner's and tries the following version.
+ * At most one local edit is in flight, later ones are combined until it is committed.
+ *
+ * Local edits show in the local text as soon as they are submitted, and are rebased over every
+ * remote edit committed before them, until their own commit comes back. Remote edits are merged
+ * into the local text, and reported to the listeners, on the executor SyncText was created with.
+ * A view should pass its own thread's executor, so remote edits are merged between its edits and
+ * reported against the text it actually shows.
+ *
+ * Every instance applies every patch, but only the author of the latest one writes it back to
+ * current, so current has one writer at a time instead of one transaction per subscriber. An
+ * author unlinking waits for its edit in flight to be committed and published. In case it never
+ * does, the other instances publish current themselves once edits stop for PUBLISH_GRACE_MILLIS.
  */
 public class SyncText {
 
     static final String KEY_CURRENT = "current";
     static final String KEY_TEXT = "value";
     static final String KEY_VERSION = "version";
-    static final String KEY_PATCHES = "patches";
-    static final String KEY_SUBSCRIBERS = "subscribers";
-
-    private String text = "";
-    private int ver;
-    private String original = text;
-    private BlockingQueue<SyncTextPatch> mPatchQueue;
-
-    private DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
-
-    private DatabaseReference mSyncRef;
-    private DatabaseReference mPatchesRef;
-    private DatabaseReference mOutputRef;
+    static final String KEY_FORMAT = "format";  //SyncTextPatch format of the patches, absent for text
+    static final String KEY_PATCHES = "patches";    //<zero padded version, patch>
+    static final String KEY_PATCH_VERSION = "ver";  //SyncTextPatch property
+    static final String KEY_SUBSCRIBERS = "subscribers";  //<id, <ver: version applied, time: when>>
+    static final String KEY_SUBSCRIBER_TIME = "time";  //client clock, in milliseconds
+
+    //patches every subscriber has applied are already folded into current. they are deleted once
+    //current gets this many versions ahead of the last compaction. subscribers report the version
+    //they applied as often, or every SUBSCRIBER_TIMEOUT_MILLIS / 2 while patches keep coming.
+    static final int COMPACTION_INTERVAL = 32;
+
+    //subscribers that haven't reported for this long are taken as gone, crashed or uninstalled,
+    //and no longer hold patches back. one kept offline for longer may miss patches until it links
+    //again.
+    static final long SUBSCRIBER_TIMEOUT_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    //delay before claiming a version again after the store failed to
+    static final long CLAIM_RETRY_MILLIS = 500;
+
+    //delay after the latest remote edit before publishing it, in case its author didn't
+    static final long PUBLISH_GRACE_MILLIS = 1000;
+
+    //longest an unlinking instance waits for its edit in flight, before dropping it
+    static final long UNLINK_TIMEOUT_MILLIS = 10000;
+
+    //local edits are sent as they happen, unless debounced with setDebounce
+    public static final long DEBOUNCE_OFF = 0;
+
+    //unless given an executor, patches of every document are applied on one small pool, so open
+    //fields don't cost threads. the pool also times debounced edits. idle threads time out and
+    //are recreated on demand.
+    static final int PATCH_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long PATCH_THREAD_KEEP_ALIVE = 30;   //seconds
+    private static final ScheduledThreadPoolExecutor sPatchExecutor;
+
+    static {
+        sPatchExecutor = new ScheduledThreadPoolExecutor(PATCH_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "SyncText-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        sPatchExecutor.setKeepAliveTime(PATCH_THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        sPatchExecutor.allowCoreThreadTimeOut(true);
+    }
 
-    private PatchConsumer mPatchConsumer;
+    //committed text and its version, replaced together on the patch queue and read from any thread
+    private final AtomicReference<Snapshot> mCommitted = new AtomicReference<>(Snapshot.EMPTY);
+    private String original = "";
+    private volatile SerialExecutor mPatchQueue;   //null while unlinked
+    private volatile boolean mUnlinking;    //waiting for the edit in flight, guarded by this
+    private ScheduledFuture<?> mUnlinkTimeout;  //guarded by this
+
+    //patches received since the last batch, guarded by itself
+    private final List<SyncTextPatch> mPendingPatches = new ArrayList<>();
+    private boolean mBatchScheduled;
+
+    //local edit state, only used on the patch queue
+    private final SyncEngine<Object> mEngine;
+    private final Executor mExecutor;   //runs the patch queue
+    private final TreeMap<Integer, SyncTextPatch> mReceived = new TreeMap<>();   //patches ahead of the committed version
+    private boolean mReady; //current has been read
+    private int mFormat = SyncTextPatch.FORMAT_TEXT;    //format of patches written, read from current
+    private final int mCreateFormat;    //format of a document this instance creates
+    private Object mInflight;   //local edit claiming version mInflightVer, against the committed text
+    private int mInflightVer;
+    private Rope mInflightText = Rope.EMPTY;  //committed text with mInflight applied
+    private Object mBuffer; //local edits made since mInflight was sent, against mInflightText
+    private Rope mLocalText = Rope.EMPTY; //mInflightText with mBuffer applied, as edited locally
+    private long mLastRemoteCommit; //nanoTime of the latest version committed by another instance
+    private int mAckedVer;  //version last reported to subscribers
+    private long mAckedAt;  //nanoTime it was reported
+    private boolean mPublishCheckScheduled;
+
+    private volatile long mIdleMillis = DEBOUNCE_OFF;
+    private volatile long mMaxLatencyMillis = DEBOUNCE_OFF;
+
+    //local edits not submitted yet, guarded by mUnsentLock
+    private final Object mUnsentLock = new Object();
+    private final List<LocalEdit> mUnsentEdits = new ArrayList<>();
+    private long mUnsentFirstEdit;  //nanoTime of the first edit since the last submission
+    private long mUnsentLastEdit;
+    private boolean mUnsentFlushScheduled;
+
+    private StoreReference mSyncRef;
+    private StoreReference mPatchesRef;
+    private StoreReference mOutputRef;
+    private StoreQuery mPatchQuery;
+    private volatile int mCompactedVer;
 
     private OnTextChangeListener mOnTextChangeListener;
+    private OnTextEditListener mOnTextEditListener;
 
     private String mId;
 
     private String mInstance;
 
 
-    public SyncText(DatabaseReference reference, DatabaseReference output){
+    public SyncText(StoreReference reference, StoreReference output){
+        this(reference, output, new PatchEngine());
+    }
+
+    //every instance linked to a location must use the same kind of engine
+    public SyncText(StoreReference reference, StoreReference output, SyncEngine<?> engine){
+        this(reference, output, engine, sPatchExecutor);
+    }
+
+    //patches are applied and listeners called on executor, which must run tasks after returning,
+    //like a Handler does, rather than on the calling thread
+    public SyncText(StoreReference reference, StoreReference output, SyncEngine<?> engine, Executor executor){
+        this(reference, output, engine, executor, SyncTextPatch.FORMAT_TEXT);
+    }
+
+    //format is the SyncTextPatch format of the document if this instance creates it. instances
+    //built before FORMAT_BINARY existed can't read it, so a document should only be created
+    //binary once every instance linking to it can. existing documents keep their format.
+    @SuppressWarnings("unchecked")
+    public SyncText(StoreReference reference, StoreReference output, SyncEngine<?> engine, Executor executor, int format){
         if(reference == null) throw new IllegalArgumentException("null reference");
+        if(engine == null) throw new IllegalArgumentException("null engine");
+        if(executor == null) throw new IllegalArgumentException("null executor");
+        if(format != SyncTextPatch.FORMAT_TEXT && format != SyncTextPatch.FORMAT_BINARY){
+            throw new IllegalArgumentException("unknown patch format " + format);
+        }
 
         mInstance = UUID.randomUUID().toString();
 
         mSyncRef = reference;
         mOutputRef = output;
+        mEngine = (SyncEngine<Object>) engine;
+        mExecutor = executor;
+        mCreateFormat = format;
 
         mId = UUID.randomUUID().toString();
 
-        mPatchQueue = new LinkedBlockingQueue<>();
-        mPatchConsumer = new PatchConsumer(mPatchQueue);
-
-        new Thread(mPatchConsumer).start();
-
         link();
     }
 
+    //committed text, without local edits in flight
     public String getText() {
-        return text;
-    }
-
-    public void setText(String text) {
-        this.text = text;
+        return mCommitted.get().getText().toString();
     }
 
     public int getVer() {
-        return ver;
+        return mCommitted.get().getVersion();
     }
 
-    public void setVer(int ver) {
-        this.ver = ver;
+    //committed text together with its version
+    public Snapshot getSnapshot() {
+        return mCommitted.get();
     }
 
+    //called with the locally edited text, whenever remote edits change it
     public void setOnTextChangeListener(OnTextChangeListener onTextChangeListener) {
         this.mOnTextChangeListener = onTextChangeListener;
     }
 
+    //called with each span of the locally edited text that remote edits replace
+    public void setOnTextEditListener(OnTextEditListener onTextEditListener) {
+        this.mOnTextEditListener = onTextEditListener;
+    }
+
+    //coalesce local edits into one patch, sent once no edit came for idleMillis, and at most
+    //maxLatencyMillis after the first edit. DEBOUNCE_OFF sends every edit.
+    public void setDebounce(long idleMillis, long maxLatencyMillis){
+        if(idleMillis < 0 || maxLatencyMillis < idleMillis){
+            throw new IllegalArgumentException("invalid debounce " + idleMillis + "/" + maxLatencyMillis);
+        }
+        this.mIdleMillis = idleMillis;
+        this.mMaxLatencyMillis = maxLatencyMillis;
+    }
+
+    //newText is the text last reported to the listeners, with local edits. ignored once unlinked
     public void update(String newText){
+        if(newText == null) throw new IllegalArgumentException("null text");
+        queueEdit(new LocalEdit(newText));
+    }
+
+    //local edit replacing removed chars at offset with inserted, in the text last reported to the
+    //listeners with the local edits before it. ignored once unlinked
+    public void edit(int offset, int removed, String inserted){
+        if(offset < 0 || removed < 0 || inserted == null){
+            throw new IllegalArgumentException("invalid edit " + offset + "+" + removed);
+        }
+        queueEdit(new LocalEdit(offset, removed, inserted));
+    }
+
+    private void queueEdit(LocalEdit edit){
         if(mPatchesRef == null){
             throw new RuntimeException("database connection hasn't been initialized");
         }
+        SerialExecutor queue = mPatchQueue;
+        if(queue == null || mUnlinking){
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (mUnsentLock){
+            if(mUnsentEdits.isEmpty()){
+                mUnsentFirstEdit = now;
+            }
+            if(edit.wholeText != null){ //replaces the edits before it
+                mUnsentEdits.clear();
+            }
+            mUnsentEdits.add(edit);
+            mUnsentLastEdit = now;
+            if(mUnsentFlushScheduled){  //edits made until the flush runs join it
+                return;
+            }
+            mUnsentFlushScheduled = true;
+        }
+        long idle = mIdleMillis;
+        if(idle == DEBOUNCE_OFF){
+            queue.execute(mFlushUnsent);
+        }else{
+            sPatchExecutor.schedule(mScheduleFlush, idle, TimeUnit.MILLISECONDS);
+        }
+    }
 
-        LinkedList<DiffMatchPatch.Patch> patches = diffMatchPatch.patchMake(text, newText);
+    //the timer only queues the flush, so local edits are made between batches of remote ones
+    private final Runnable mScheduleFlush = new Runnable() {
+        @Override
+        public void run() {
+            SerialExecutor queue = mPatchQueue;
+            if(queue != null){
+                queue.execute(mFlushUnsent);
+                return;
+            }
+            synchronized (mUnsentLock){ //unlinked, edits made after linking again schedule a new flush
+                mUnsentFlushScheduled = false;
+            }
+        }
+    };
 
-        if(patches.size() > 0){
-            String patchString = diffMatchPatch.patchToText(patches);
-            SyncTextPatch patch = new SyncTextPatch();
-            patch.setVer(ver + 1);
-            patch.setPatch(patchString);
-            mPatchesRef.push().setValue(patch);
+    private final Runnable mFlushUnsent = new Runnable() {
+        @Override
+        public void run() {
+            List<LocalEdit> unsent;
+            synchronized (mUnsentLock){
+                if(mUnsentEdits.isEmpty() || !mReady){ //edits made before current is read are flushed after
+                    mUnsentFlushScheduled = false;
+                    return;
+                }
+                long due = Math.min(mUnsentLastEdit + TimeUnit.MILLISECONDS.toNanos(mIdleMillis),
+                        mUnsentFirstEdit + TimeUnit.MILLISECONDS.toNanos(mMaxLatencyMillis));
+                long wait = due - System.nanoTime();
+                if(wait > 0){   //edited since the flush was scheduled
+                    sPatchExecutor.schedule(mScheduleFlush, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                unsent = new ArrayList<>(mUnsentEdits);
+                mUnsentEdits.clear();
+                mUnsentFlushScheduled = false;
+            }
+            submit(unsent);
         }
+    };
+
+    //flush without waiting for the debounce delay
+    private void flushUnsent(){
+        List<LocalEdit> unsent;
+        synchronized (mUnsentLock){
+            if(mUnsentEdits.isEmpty()){
+                return;
+            }
+            unsent = new ArrayList<>(mUnsentEdits);
+            mUnsentEdits.clear();
+        }
+        submit(unsent);
     }
 
-    private void processPatch(SyncTextPatch patch){
+    //local edits, applied in order to the local text
+    private void submit(List<LocalEdit> edits){
+        Rope newText = mLocalText;
+        Object change = null;
+        for(LocalEdit edit : edits){
+            Object next;
+            try{
+                next = edit.wholeText != null
+                        ? mEngine.diff(newText, Rope.of(edit.wholeText))
+                        : mEngine.edit(newText, edit.offset, edit.removed, edit.inserted);
+            }catch(IllegalArgumentException | IndexOutOfBoundsException e){ //made against a text this instance never had
+                e.printStackTrace();
+                continue;
+            }
+            if(next == null){
+                continue;
+            }
+            change = change == null ? next : mEngine.compose(mLocalText, change, next);
+            newText = mEngine.apply(newText, next);
+        }
+        if(change == null){
+            return;
+        }
+        if(mInflight == null){
+            mInflight = change;
+            mInflightText = newText;
+            claim();
+        }else{
+            mBuffer = mBuffer == null ? change : mEngine.compose(mInflightText, mBuffer, change);
+        }
+        mLocalText = newText;
+    }
+
+    //write the in flight edit as the next version, unless another instance already did
+    private void claim(){
+        final int version = mCommitted.get().getVersion() + 1;
+        mInflightVer = version;
+        final SyncTextPatch patch = new SyncTextPatch();
+        patch.setVer(version);
+        patch.setFormat(mFormat);
+        patch.setPatch(encodePatch(mInflight));
+        patch.setSource(mId);
+        mPatchesRef.child(getPatchKey(version)).runTransaction(new StoreTransaction() {
+            @Override
+            public boolean doTransaction(StoreMutableData currentData) {
+                if(currentData.getValue() != null){ //taken
+                    return false;
+                }
+                currentData.setValue(patch);
+                return true;
+            }
 
-        int v = patch.getVer();
-        if(this.ver >= v){  //ignore patches for previous versions
+            @Override
+            public void onComplete(StoreError databaseError, boolean success, StoreSnapshot dataSnapshot) {
+                //whoever won the version, its patch arrives through mPatchListener
+                if(databaseError != null){
+                    sPatchExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            SerialExecutor queue = mPatchQueue;
+                            if(queue != null){
+                                queue.execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if(mInflight != null && mInflightVer == version
+                                                && mCommitted.get().getVersion() < version){
+                                            claim();
+                                        }
+                                    }
+                                });
+                            }
+                        }
+                    }, CLAIM_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+    }
+
+    private String encodePatch(Object change){
+        if(mFormat == SyncTextPatch.FORMAT_BINARY){
+            return BaseEncoding.base64().encode(mEngine.encodeBinary(change));
+        }
+        return mEngine.encode(change);
+    }
+
+    //patches are read in the format they were written in, whatever this instance writes
+    private Object decodePatch(SyncTextPatch patch){
+        switch(patch.getFormat()){
+            case SyncTextPatch.FORMAT_TEXT:
+                return mEngine.decode(patch.getPatch());
+            case SyncTextPatch.FORMAT_BINARY:
+                return mEngine.decodeBinary(BaseEncoding.base64().decode(patch.getPatch()));
+            default:
+                throw new IllegalArgumentException("unknown patch format " + patch.getFormat());
+        }
+    }
+
+    //zero padded, so keys sort like versions. builds before version claims pushed patches under
+    //push keys instead. those are still read and compacted, since every query orders by
+    //KEY_PATCH_VERSION, but such builds don't claim versions, so every instance of a document has
+    //to be updated before editing it again.
+    static String getPatchKey(int version){
+        String digits = Integer.toString(version);
+        return digits.length() >= 10 ? digits : "0000000000".substring(digits.length()) + digits;
+    }
+
+    //apply the received patches that follow the committed version, then publish the result once
+    private void processPatches(){
+        int committedVer = mCommitted.get().getVersion();
+        synchronized (mPendingPatches){
+            for(SyncTextPatch patch : mPendingPatches){
+                if(patch.getVer() > committedVer && !mReceived.containsKey(patch.getVer())){
+                    mReceived.put(patch.getVer(), patch);
+                }
+            }
+            mPendingPatches.clear();
+            mBatchScheduled = false;
+        }
+        if(!mReady){
             return;
         }
+        flushUnsent();  //take pending local edits into the local text the listener gets
 
-        LinkedList<DiffMatchPatch.Patch> remotePatch = new LinkedList<>(diffMatchPatch.patchFromText(patch.getPatch()));
-        Object[] results = diffMatchPatch.patchApply(remotePatch, this.text);
-        //TODO: check results
-        if(results != null && results.length > 0 && results[0] instanceof String){
-            String patchedString = (String)results[0];
-            this.ver = v;
-            this.text = patchedString;
+        Rope localText = mLocalText;
+        SyncTextPatch latest = null;
+        SyncTextPatch patch;
+        while((patch = mReceived.remove(committedVer + 1)) != null){
+            processPatch(patch);
+            latest = patch;
+            committedVer++;
+        }
+        if(latest == null){
+            return;
+        }
+        if(mId.equals(latest.getSource())){ //its author is the one instance publishing the latest version
             updateCurrent();
+        }else{
+            schedulePublishCheck();
+        }
+        if(committedVer - mAckedVer >= COMPACTION_INTERVAL
+                || System.nanoTime() - mAckedAt >= TimeUnit.MILLISECONDS.toNanos(SUBSCRIBER_TIMEOUT_MILLIS / 2)){
+            acknowledge(committedVer);
+        }
+        if(mInflight != null && mInflightVer <= committedVer){   //lost its version, or follows the one committed
+            claim();
+        }
+        if(localText != mLocalText && mOnTextChangeListener != null){
+            mOnTextChangeListener.onTextChange(mLocalText.toString());
+        }
+        if(mUnlinking){
+            unlinkWhenCommitted(mPatchQueue);
+        }
+    }
+
+    //publish current once remote edits stop for PUBLISH_GRACE_MILLIS, in case the author of the
+    //latest one unlinked or died before it could. updateCurrent doesn't write if it did.
+    private void schedulePublishCheck(){
+        mLastRemoteCommit = System.nanoTime();
+        if(!mPublishCheckScheduled){
+            mPublishCheckScheduled = true;
+            sPatchExecutor.schedule(mSchedulePublishCheck, PUBLISH_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private final Runnable mSchedulePublishCheck = new Runnable() {
+        @Override
+        public void run() {
+            SerialExecutor queue = mPatchQueue;
+            if(queue != null){
+                queue.execute(mPublishCheck);
+            }
+        }
+    };
+
+    private final Runnable mPublishCheck = new Runnable() {
+        @Override
+        public void run() {
+            long wait = mLastRemoteCommit + TimeUnit.MILLISECONDS.toNanos(PUBLISH_GRACE_MILLIS) - System.nanoTime();
+            if(wait > 0){   //committed another remote edit since
+                sPatchExecutor.schedule(mSchedulePublishCheck, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            mPublishCheckScheduled = false;
+            if(mReady){
+                updateCurrent();
+            }
+        }
+    };
+
+    private void processPatch(SyncTextPatch patch){
+        int version = patch.getVer();
+        Rope base = mCommitted.get().getText();
+        if(mInflight != null && mInflightVer == version && mId.equals(patch.getSource())){  //committed local edit
+            mCommitted.set(new Snapshot(mInflightText, version));
+            mInflight = mBuffer;
+            mInflightText = mLocalText;
+            mBuffer = null;
+            return;
+        }
+
+        Object change;
+        Rope text;
+        try{
+            change = decodePatch(patch);
+            text = mEngine.apply(base, change);
+        }catch(IllegalArgumentException | IndexOutOfBoundsException e){ //malformed patches are skipped by every instance
+            e.printStackTrace();
+            text = base;
+            change = null;
+        }
+        mCommitted.set(new Snapshot(text, version));
+        if(change == null){
+            return;
+        }
+        if(mInflight == null){
+            mInflightText = mLocalText = text;
+            reportEdits(base, change);
+            return;
+        }
+
+        //rebase local edits over the remote one, which was committed first
+        Rope localText = mLocalText;
+        Object inflight = mEngine.transform(base, mInflight, change, false);
+        Object rebased = mEngine.transform(base, change, mInflight, true);
+        Object localChange = rebased;   //the remote edit following every local one
+        if(mBuffer != null && rebased != null){
+            localChange = mEngine.transform(mInflightText, rebased, mBuffer, true);
+            mBuffer = mEngine.transform(mInflightText, mBuffer, rebased, false);
+        }
+        mInflightText = inflight == null ? text : mEngine.apply(text, inflight);
+        mLocalText = mBuffer == null ? mInflightText : mEngine.apply(mInflightText, mBuffer);
+        if(inflight == null){   //nothing left to send but the buffer
+            inflight = mBuffer;
+            mInflightText = mLocalText;
+            mBuffer = null;
+        }
+        mInflight = inflight;
+        reportEdits(localText, localChange);
+    }
+
+    //tell the edit listener how change, made against localText, edited the local text
+    private void reportEdits(Rope localText, Object change){
+        if(mOnTextEditListener != null && localText != mLocalText){
+            mEngine.edits(localText, mLocalText, change, mOnTextEditListener);
         }
     }
 
+    //publish the committed text. mostly the author of the latest version calls this, and others
+    //rarely contend: the transaction just keeps a slower author from moving current back, and
+    //leaves current alone when it is already at the version.
     private void updateCurrent(){
-        mSyncRef.child(KEY_CURRENT).runTransaction(new Transaction.Handler() {
+        Snapshot committed = mCommitted.get();
+        final String currentText = committed.getText().toString();
+        final int currentVer = committed.getVersion();
+        final int format = mFormat;
+        mSyncRef.child(KEY_CURRENT).runTransaction(new StoreTransaction() {
             @Override
-            public Transaction.Result doTransaction(MutableData currentData) {
+            public boolean doTransaction(StoreMutableData currentData) {
                 if(currentData.getValue() == null){
-                    currentData.child(KEY_TEXT).setValue(text);
-                    currentData.child(KEY_VERSION).setValue(ver);
+                    currentData.child(KEY_TEXT).setValue(currentText);
+                    currentData.child(KEY_VERSION).setValue(currentVer);
+                    if(format != SyncTextPatch.FORMAT_TEXT){
+                        currentData.child(KEY_FORMAT).setValue(format);
+                    }
                 }else{
                     int latest = currentData.child(KEY_VERSION).getValue(Integer.class);
-                    if(latest > ver){
-                        return Transaction.abort();
+                    if(latest >= currentVer){
+                        return false;
                     }
-                    currentData.child(KEY_TEXT).setValue(text);
-                    currentData.child(KEY_VERSION).setValue(ver);
+                    currentData.child(KEY_TEXT).setValue(currentText);
+                    currentData.child(KEY_VERSION).setValue(currentVer);
                 }
-                return Transaction.success(currentData);
+                return true;
             }
 
             @Override
-            public void onComplete(DatabaseError databaseError, boolean success, DataSnapshot dataSnapshot) {
+            public void onComplete(StoreError databaseError, boolean success, StoreSnapshot dataSnapshot) {
                 if(success){
-                    if(mOnTextChangeListener != null){
-                        mOnTextChangeListener.onTextChange(text);
-                    }
+                    compact(currentVer);
                     if(mOutputRef != null){  //pass successful change to output location
-                        mOutputRef.setValue(text);
+                        mOutputRef.setValue(currentText);
                     }
                 }
             }
         });
     }
 
+    //linking while still unlinking keeps the instance linked
     public void link(){
+        synchronized (this){
+            if(mPatchQueue != null){    //already linked
+                cancelUnlink();
+                return;
+            }
+            mPatchQueue = new SerialExecutor(mExecutor);
+        }
 
-        mSyncRef.child(KEY_SUBSCRIBERS).child(mId).setValue(0);
+        writeSubscriber(0);    //holds patches back from compaction until current is read
 
         mPatchesRef = mSyncRef.child(KEY_PATCHES);
-        mSyncRef.child(KEY_CURRENT).addListenerForSingleValueEvent(new ValueEventListener() {
+        mSyncRef.child(KEY_CURRENT).addSingleValueListener(new StoreValueListener() {
             @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
+            public void onDataChange(StoreSnapshot dataSnapshot) {
                 if(dataSnapshot.exists()){
-                    text = dataSnapshot.child(KEY_TEXT).getValue(String.class);
-                    ver = dataSnapshot.child(KEY_VERSION).getValue(Integer.class);
+                    //documents created before formats existed stay text, so older instances can follow
+                    Integer format = dataSnapshot.child(KEY_FORMAT).getValue(Integer.class);
+                    start(Rope.of(dataSnapshot.child(KEY_TEXT).getValue(String.class)),
+                            dataSnapshot.child(KEY_VERSION).getValue(Integer.class),
+                            format == null ? SyncTextPatch.FORMAT_TEXT : format, false);
                 }else if(mOutputRef != null){   //check if output ref already has a value
-                    mOutputRef.addListenerForSingleValueEvent(new ValueEventListener() {
+                    mOutputRef.addSingleValueListener(new StoreValueListener() {
                         @Override
-                        public void onDataChange(DataSnapshot dataSnapshot) {
+                        public void onDataChange(StoreSnapshot dataSnapshot) {
+                            String initial = "";
                             if(dataSnapshot.exists() && dataSnapshot.getValue() != null){
-                                text = dataSnapshot.getValue(String.class);
-                                original = text;
+                                initial = dataSnapshot.getValue(String.class);
+                                original = initial;
                             }
-                            updateCurrent();
+                            start(Rope.of(initial), 0, mCreateFormat, true);
                         }
                         @Override
-                        public void onCancelled(DatabaseError databaseError) {
+                        public void onCancelled(StoreError databaseError) {
 
                         }
                     });
                 }else{  //version 0, empty string
+                    start(Rope.EMPTY, 0, mCreateFormat, true);
+                }
+            }
+
+            @Override
+            public void onCancelled(StoreError databaseError) {
+
+            }
+        });
+    }
+
+    //sync from the text at version, once it has been read from current
+    private void start(final Rope currentText, final int currentVer, final int format, final boolean create){
+        SerialExecutor queue = mPatchQueue;
+        if(queue == null){  //unlinked in the meantime
+            return;
+        }
+        queue.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCommitted.set(new Snapshot(currentText, currentVer));
+                mFormat = format;
+                mInflightText = mLocalText = currentText;
+                mCompactedVer = currentVer;
+                mPublishCheckScheduled = false;
+                mReady = true;
+                acknowledge(currentVer);
+                if(create){
                     updateCurrent();
                 }
 
-//                mPatchesRef.orderByChild(KEY_VERSION).startAt(ver).addChildEventListener(mPatchListener);
-                mPatchesRef.addChildEventListener(mPatchListener);
+                synchronized (SyncText.this){
+                    if(mPatchQueue == null){
+                        return;
+                    }
+                    //older patches are already part of current
+                    mPatchQuery = mPatchesRef.orderByChild(KEY_PATCH_VERSION).startAt(currentVer + 1);
+                    mPatchQuery.addChildListener(mPatchListener);
+                }
 
                 if(mOnTextChangeListener != null){
-                    mOnTextChangeListener.onTextChange(text);
+                    mOnTextChangeListener.onTextChange(currentText.toString());
+                }
+                if(mOnTextEditListener != null){
+                    mOnTextEditListener.onTextReset(currentText.toString());
                 }
+                flushUnsent();
             }
+        });
+    }
+
+    //record the latest version this instance has applied. only called on the patch queue
+    private void acknowledge(int version){
+        mAckedVer = version;
+        mAckedAt = System.nanoTime();
+        writeSubscriber(version);
+    }
 
+    private void writeSubscriber(int version){
+        Map<String, Object> subscriber = new HashMap<>();
+        subscriber.put(KEY_PATCH_VERSION, version);
+        subscriber.put(KEY_SUBSCRIBER_TIME, System.currentTimeMillis());
+        mSyncRef.child(KEY_SUBSCRIBERS).child(mId).setValue(subscriber);
+    }
+
+    //delete the patches every live subscriber has applied, every COMPACTION_INTERVAL versions,
+    //along with the subscribers timed out
+    private void compact(final int currentVer){
+        if(currentVer - mCompactedVer < COMPACTION_INTERVAL){
+            return;
+        }
+        mCompactedVer = currentVer;
+        mSyncRef.child(KEY_SUBSCRIBERS).addSingleValueListener(new StoreValueListener() {
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onDataChange(StoreSnapshot dataSnapshot) {
+                long cutoff = System.currentTimeMillis() - SUBSCRIBER_TIMEOUT_MILLIS;
+                int applied = currentVer;
+                Map<String, Object> timedOut = new HashMap<>();
+                for(StoreSnapshot subscriber : dataSnapshot.getChildren()){
+                    Integer version = null;
+                    Long time = null;
+                    try{
+                        version = subscriber.child(KEY_PATCH_VERSION).getValue(Integer.class);
+                        time = subscriber.child(KEY_SUBSCRIBER_TIME).getValue(Long.class);
+                    }catch(StoreException e){
+                        e.printStackTrace();
+                    }
+                    //entries are written whole, so a missing field is a bare version left by an
+                    //older build, which would never be refreshed
+                    if(version == null || time == null || time < cutoff){
+                        timedOut.put(subscriber.getKey(), null);
+                    }else{
+                        applied = Math.min(applied, version);
+                    }
+                }
+                if(!timedOut.isEmpty()){
+                    mSyncRef.child(KEY_SUBSCRIBERS).updateChildren(timedOut);
+                }
+                if(applied > 0){
+                    removePatches(applied);
+                }
+            }
+
+            @Override
+            public void onCancelled(StoreError databaseError) {
+
+            }
+        });
+    }
+
+    private void removePatches(int upToVer){
+        mPatchesRef.orderByChild(KEY_PATCH_VERSION).endAt(upToVer).addSingleValueListener(new StoreValueListener() {
+            @Override
+            public void onDataChange(StoreSnapshot dataSnapshot) {
+                Map<String, Object> removed = new HashMap<>();
+                for(StoreSnapshot patch : dataSnapshot.getChildren()){
+                    removed.put(patch.getKey(), null);
+                }
+                if(!removed.isEmpty()){
+                    mPatchesRef.updateChildren(removed);
+                }
+            }
+
+            @Override
+            public void onCancelled(StoreError databaseError) {
 
             }
         });
@@ -204,16 +789,16 @@ public class SyncText {
         return original;
     }
 
-    private ChildEventListener mPatchListener = new ChildEventListener() {
+    private StoreChildListener mPatchListener = new StoreChildListener() {
         @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+        public void onChildAdded(StoreSnapshot dataSnapshot, String s) {
             if(dataSnapshot.exists()){
                 try{
                     SyncTextPatch patch = dataSnapshot.getValue(SyncTextPatch.class);
                     if(patch != null){
-                        mPatchQueue.add(patch);
+                        queuePatch(patch);
                     }
-                }catch(DatabaseException e){
+                }catch(StoreException e){
                     e.printStackTrace();
                 }
             }
@@ -221,47 +806,173 @@ public class SyncText {
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(StoreSnapshot dataSnapshot, String s) {
 
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {
 
         }
 
+
         @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        public void onCancelled(StoreError databaseError) {
 
         }
+    };
 
-        @Override
-        public void onCancelled(DatabaseError databaseError) {
+    //patches arriving while a batch is pending join it
+    private void queuePatch(SyncTextPatch patch){
+        SerialExecutor queue = mPatchQueue;
+        if(queue == null){
+            return;
+        }
+        synchronized (mPendingPatches){
+            mPendingPatches.add(patch);
+            if(mBatchScheduled){
+                return;
+            }
+            mBatchScheduled = true;
+        }
+        queue.execute(mProcessPatches);
+    }
 
+    private final Runnable mProcessPatches = new Runnable() {
+        @Override
+        public void run() {
+            processPatches();
         }
     };
 
+    //submits pending local edits, and stops listening for patches once the queued work is done and
+    //the edit in flight is committed. local edits made after this are ignored, and an edit not
+    //committed within UNLINK_TIMEOUT_MILLIS is dropped.
     public void unlink(){
-        mSyncRef.child(KEY_PATCHES).removeEventListener(mPatchListener);
+        final SerialExecutor queue;
+        synchronized (this){
+            queue = mPatchQueue;
+            if(queue == null || mUnlinking){
+                return;
+            }
+            mUnlinking = true;
+            mUnlinkTimeout = sPatchExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    queue.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finishUnlink(queue);
+                        }
+                    });
+                }
+            }, UNLINK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        queue.execute(new Runnable() {
+            @Override
+            public void run() {
+                unlinkWhenCommitted(queue);
+            }
+        });
+    }
+
+    //submit the edits made until unlink, and finish unlinking once none is left in flight.
+    //only called on queue
+    private void unlinkWhenCommitted(SerialExecutor queue){
+        if(mReady){
+            flushUnsent();
+        }
+        if(mInflight == null){
+            finishUnlink(queue);
+        }
+    }
+
+    private void cancelUnlink(){
+        if(mUnlinking){
+            mUnlinking = false;
+            mUnlinkTimeout.cancel(false);
+            mUnlinkTimeout = null;
+        }
+    }
+
+    //only called on queue
+    private void finishUnlink(SerialExecutor queue){
+        synchronized (this){
+            if(!mUnlinking || mPatchQueue != queue){    //linked again since
+                return;
+            }
+            cancelUnlink();
+            mPatchQueue = null;
+            if(mPatchQuery != null){
+                mPatchQuery.removeListener(mPatchListener);
+                mPatchQuery = null;
+            }
+        }
+        mReady = false;
+        queue.stop();
+        synchronized (mPendingPatches){
+            mPendingPatches.clear();
+            mBatchScheduled = false;
+        }
+        mReceived.clear();
+        mInflight = null;
+        mBuffer = null;
+        mSyncRef.child(KEY_SUBSCRIBERS).child(mId).removeValue();
     }
 
     public interface OnTextChangeListener{
         void onTextChange(String currentText);
     }
 
-    private class PatchConsumer implements Runnable {
-        private final BlockingQueue<SyncTextPatch> queue;
+    //incremental alternative to OnTextChangeListener, for views editing their text in place
+    public interface OnTextEditListener{
+        //the local text was replaced as a whole, as when linking
+        void onTextReset(String currentText);
 
-        PatchConsumer(BlockingQueue q) { queue = q; }
-        public void run() {
-            try {
-                while (true) { consume(queue.take()); }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        //removedLength chars at offset were replaced with inserted
+        void onTextEdit(int offset, int removedLength, String inserted);
+    }
+
+    //immutable committed state: the text at a version
+    public static final class Snapshot{
+        static final Snapshot EMPTY = new Snapshot(Rope.EMPTY, 0);
+
+        private final Rope mText;
+        private final int mVersion;
+
+        Snapshot(Rope text, int version){
+            this.mText = text;
+            this.mVersion = version;
         }
-        void consume(SyncTextPatch patch) {
-            processPatch(patch);
+
+        public Rope getText(){
+            return mText;
+        }
+
+        public int getVersion(){
+            return mVersion;
+        }
+    }
+
+    //local edit not submitted yet: a span replaced, or the whole new text
+    private static class LocalEdit{
+        final int offset;
+        final int removed;
+        final String inserted;
+        final String wholeText;
+
+        LocalEdit(int offset, int removed, String inserted){
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.wholeText = null;
+        }
+
+        LocalEdit(String wholeText){
+            this.offset = 0;
+            this.removed = 0;
+            this.inserted = null;
+            this.wholeText = wholeText;
         }
     }
 
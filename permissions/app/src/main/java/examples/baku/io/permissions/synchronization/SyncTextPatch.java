@@ -10,9 +10,15 @@ import java.util.concurrent.BlockingQueue;
  * Created by phamilton on 6/24/16.
  */
 public class SyncTextPatch{
+
+    //patches written before formats existed have none, and are text
+    public static final int FORMAT_TEXT = 0;
+    public static final int FORMAT_BINARY = 1;  //base64 of SyncEngine.encodeBinary
+
     private int ver;
     private String patch;
     private String source;
+    private int format = FORMAT_TEXT;
 
     public SyncTextPatch() {}
 
@@ -39,5 +45,13 @@ public class SyncTextPatch{
     public void setSource(String source) {
         this.source = source;
     }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public void setFormat(int format) {
+        this.format = format;
+    }
 }
 
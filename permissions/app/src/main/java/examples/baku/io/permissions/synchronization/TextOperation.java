@@ -0,0 +1,346 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Edit of a whole text as a sequence of retains, inserts and deletes, walked from the start.
+ *
+ * Operations made concurrently against the same text are merged with {@link #transform},
+ * consecutive ones with {@link #compose}, the usual operational transformation algebra.
+ * Components are kept canonical: adjacent components of one kind are merged, and an insert
+ * always comes before a delete at the same position.
+ */
+public final class TextOperation {
+
+    //retains are positive, deletes negative, inserts are strings
+    private final List<Object> mOps = new ArrayList<>();
+    private int mBaseLength;
+    private int mTargetLength;
+
+    public TextOperation retain(int count) {
+        if (count < 0) throw new IllegalArgumentException("negative retain " + count);
+        if (count == 0) {
+            return this;
+        }
+        mBaseLength += count;
+        mTargetLength += count;
+        int last = mOps.size() - 1;
+        if (last >= 0 && isRetain(mOps.get(last))) {
+            mOps.set(last, (Integer) mOps.get(last) + count);
+        } else {
+            mOps.add(count);
+        }
+        return this;
+    }
+
+    public TextOperation insert(String text) {
+        if (text == null) throw new IllegalArgumentException("null insert");
+        if (text.isEmpty()) {
+            return this;
+        }
+        mTargetLength += text.length();
+        int last = mOps.size() - 1;
+        if (last >= 0 && isInsert(mOps.get(last))) {
+            mOps.set(last, mOps.get(last) + text);
+        } else if (last >= 0 && isDelete(mOps.get(last))) {
+            //keep inserts before deletes
+            if (last > 0 && isInsert(mOps.get(last - 1))) {
+                mOps.set(last - 1, mOps.get(last - 1) + text);
+            } else {
+                mOps.add(last, text);
+            }
+        } else {
+            mOps.add(text);
+        }
+        return this;
+    }
+
+    public TextOperation delete(int count) {
+        if (count < 0) throw new IllegalArgumentException("negative delete " + count);
+        if (count == 0) {
+            return this;
+        }
+        mBaseLength += count;
+        int last = mOps.size() - 1;
+        if (last >= 0 && isDelete(mOps.get(last))) {
+            mOps.set(last, (Integer) mOps.get(last) - count);
+        } else {
+            mOps.add(-count);
+        }
+        return this;
+    }
+
+    //length of the text this operation applies to
+    public int getBaseLength() {
+        return mBaseLength;
+    }
+
+    //length of the text it produces
+    public int getTargetLength() {
+        return mTargetLength;
+    }
+
+    //whether the operation leaves every text unchanged
+    public boolean isNoop() {
+        return mOps.isEmpty() || (mOps.size() == 1 && isRetain(mOps.get(0)));
+    }
+
+    //rebuilds text from slices of the original, so the cost grows with the components, not the text
+    public Rope apply(Rope text) {
+        if (text.length() != mBaseLength) {
+            throw new IllegalArgumentException("operation for length " + mBaseLength + " applied to length " + text.length());
+        }
+        Rope result = Rope.EMPTY;
+        int index = 0;
+        for (Object op : mOps) {
+            if (isRetain(op)) {
+                int count = (Integer) op;
+                result = result.concat(text.subSequence(index, index + count));
+                index += count;
+            } else if (isInsert(op)) {
+                result = result.concat((String) op);
+            } else {
+                index -= (Integer) op;
+            }
+        }
+        return result;
+    }
+
+    //operation with the effect of this one followed by next
+    public TextOperation compose(TextOperation next) {
+        if (mTargetLength != next.mBaseLength) {
+            throw new IllegalArgumentException("can't compose, target length " + mTargetLength + " and base length " + next.mBaseLength);
+        }
+        TextOperation result = new TextOperation();
+        Cursor first = new Cursor(mOps);
+        Cursor second = new Cursor(next.mOps);
+        while (first.hasNext() || second.hasNext()) {
+            if (first.isDelete()) {
+                result.delete(first.takeCount());
+            } else if (second.isInsert()) {
+                result.insert(second.takeInsert());
+            } else if (!first.hasNext() || !second.hasNext()) {
+                throw new IllegalStateException("operations don't line up");
+            } else if (first.isRetain() && second.isRetain()) {
+                result.retain(take(first, second));
+            } else if (first.isInsert() && second.isDelete()) {
+                int count = Math.min(first.remaining(), second.remaining());
+                first.skip(count);
+                second.skip(count);
+            } else if (first.isInsert()) {  //second retains
+                int count = Math.min(first.remaining(), second.remaining());
+                result.insert(first.takeInsert(count));
+                second.skip(count);
+            } else {    //first retains, second deletes
+                result.delete(take(first, second));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges two operations made against the same text. Returns {a', b'}, such that applying
+     * a then b' gives the same text as b then a'. Where both insert at the same position,
+     * a's insert goes first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.mBaseLength != b.mBaseLength) {
+            throw new IllegalArgumentException("can't transform, base lengths " + a.mBaseLength + " and " + b.mBaseLength);
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        Cursor first = new Cursor(a.mOps);
+        Cursor second = new Cursor(b.mOps);
+        while (first.hasNext() || second.hasNext()) {
+            if (first.isInsert()) {
+                String text = first.takeInsert();
+                aPrime.insert(text);
+                bPrime.retain(text.length());
+            } else if (second.isInsert()) {
+                String text = second.takeInsert();
+                aPrime.retain(text.length());
+                bPrime.insert(text);
+            } else if (!first.hasNext() || !second.hasNext()) {
+                throw new IllegalStateException("operations don't line up");
+            } else if (first.isRetain() && second.isRetain()) {
+                int count = take(first, second);
+                aPrime.retain(count);
+                bPrime.retain(count);
+            } else if (first.isDelete() && second.isDelete()) {
+                take(first, second);    //deleted by both
+            } else if (first.isDelete()) {
+                aPrime.delete(take(first, second));
+            } else {
+                bPrime.delete(take(first, second));
+            }
+        }
+        return new TextOperation[]{aPrime, bPrime};
+    }
+
+    //consume the shorter of both current components, returning its length
+    private static int take(Cursor first, Cursor second) {
+        int count = Math.min(first.remaining(), second.remaining());
+        first.skip(count);
+        second.skip(count);
+        return count;
+    }
+
+    //components in order, visited through a callback so encoders don't depend on the list
+    void visit(Visitor visitor) {
+        for (Object op : mOps) {
+            if (isRetain(op)) {
+                visitor.retain((Integer) op);
+            } else if (isInsert(op)) {
+                visitor.insert((String) op);
+            } else {
+                visitor.delete(-(Integer) op);
+            }
+        }
+    }
+
+    interface Visitor {
+        void retain(int count);
+
+        void insert(String text);
+
+        void delete(int count);
+    }
+
+    //"=n" retains, "-n" deletes and "+n:text" inserts n chars
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        visit(new Visitor() {
+            @Override
+            public void retain(int count) {
+                result.append('=').append(count);
+            }
+
+            @Override
+            public void insert(String text) {
+                result.append('+').append(text.length()).append(':').append(text);
+            }
+
+            @Override
+            public void delete(int count) {
+                result.append('-').append(count);
+            }
+        });
+        return result.toString();
+    }
+
+    public static TextOperation parse(String encoded) {
+        TextOperation result = new TextOperation();
+        int index = 0;
+        try {
+            while (index < encoded.length()) {
+                char kind = encoded.charAt(index++);
+                int end = index;
+                while (end < encoded.length() && Character.isDigit(encoded.charAt(end))) {
+                    end++;
+                }
+                int count = Integer.parseInt(encoded.substring(index, end));
+                index = end;
+                if (kind == '=') {
+                    result.retain(count);
+                } else if (kind == '-') {
+                    result.delete(count);
+                } else if (kind == '+' && encoded.charAt(index) == ':') {
+                    index++;
+                    result.insert(encoded.substring(index, index + count));
+                    index += count;
+                } else {
+                    throw new IllegalArgumentException("malformed operation " + encoded);
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed operation " + encoded, e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TextOperation && ((TextOperation) o).mOps.equals(mOps);
+    }
+
+    @Override
+    public int hashCode() {
+        return mOps.hashCode();
+    }
+
+    private static boolean isRetain(Object op) {
+        return op instanceof Integer && (Integer) op > 0;
+    }
+
+    private static boolean isDelete(Object op) {
+        return op instanceof Integer && (Integer) op < 0;
+    }
+
+    private static boolean isInsert(Object op) {
+        return op instanceof String;
+    }
+
+    //position inside a component list, splitting components as they are partly consumed
+    private static class Cursor {
+        final List<Object> ops;
+        int index;
+        int offset; //consumed part of the current component
+
+        Cursor(List<Object> ops) {
+            this.ops = ops;
+        }
+
+        boolean hasNext() {
+            return index < ops.size();
+        }
+
+        boolean isRetain() {
+            return hasNext() && TextOperation.isRetain(ops.get(index));
+        }
+
+        boolean isDelete() {
+            return hasNext() && TextOperation.isDelete(ops.get(index));
+        }
+
+        boolean isInsert() {
+            return hasNext() && TextOperation.isInsert(ops.get(index));
+        }
+
+        int remaining() {
+            Object op = ops.get(index);
+            int length = op instanceof String ? ((String) op).length() : Math.abs((Integer) op);
+            return length - offset;
+        }
+
+        void skip(int count) {
+            offset += count;
+            if (remaining() == 0) {
+                index++;
+                offset = 0;
+            }
+        }
+
+        int takeCount() {
+            int count = remaining();
+            skip(count);
+            return count;
+        }
+
+        String takeInsert() {
+            return takeInsert(remaining());
+        }
+
+        String takeInsert(int count) {
+            String text = (String) ops.get(index);
+            String result = text.substring(offset, offset + count);
+            skip(count);
+            return result;
+        }
+    }
+}
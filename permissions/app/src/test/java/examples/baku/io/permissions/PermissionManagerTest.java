@@ -0,0 +1,152 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import examples.baku.io.permissions.store.MemoryStore;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Permissions granted by blessings, applied straight away against the in-memory store.
+ */
+public class PermissionManagerTest {
+
+    static final String OWNER = "owner";
+
+    private StoreReference mBlessings;
+    private PermissionManager mManager;
+
+    @Before
+    public void setUp() {
+        StoreReference root = new MemoryStore().getReference();
+        mBlessings = root.child(PermissionManager.KEY_BLESSINGS);
+        mManager = new PermissionManager(root, OWNER);
+        mManager.setBatchWindow(PermissionManager.BATCH_IMMEDIATE);
+    }
+
+    //a blessing of OWNER granting permissions at each path, "" for the root of the rules
+    private void bless(String id, Map<String, Integer> grants) {
+        Map<String, Object> rules = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> grant : grants.entrySet()) {
+            Map<String, Object> node = rules;
+            if (!grant.getKey().isEmpty()) {
+                for (String segment : grant.getKey().split("/")) {
+                    node = getOrCreate(node, segment);
+                }
+            }
+            node.put(PermissionManager.KEY_PERMISSIONS, grant.getValue());
+        }
+        Map<String, Object> blessing = new LinkedHashMap<>();
+        blessing.put("id", id);
+        blessing.put("target", OWNER);
+        blessing.put("source", "source");
+        blessing.put(Blessing.KEY_RULES, rules);
+        mBlessings.child(id).setValue(blessing);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getOrCreate(Map<String, Object> node, String segment) {
+        Object child = node.get(segment);
+        if (!(child instanceof Map)) {
+            child = new LinkedHashMap<String, Object>();
+            node.put(segment, child);
+        }
+        return (Map<String, Object>) child;
+    }
+
+    private static Map<String, Integer> grant(String path, int permissions) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        result.put(path, permissions);
+        return result;
+    }
+
+    @Test
+    public void rootRuleGrantsEveryPath() {
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents/a"));   //cached
+        bless("root", grant("", PermissionManager.FLAG_READ));
+        assertEquals(PermissionManager.FLAG_READ, mManager.getPermission(""));
+        assertEquals(PermissionManager.FLAG_READ, mManager.getPermission("documents/a"));
+        int[] bulk = mManager.getPermissions(Arrays.asList("documents/a", "documents/b/c"));
+        assertEquals(PermissionManager.FLAG_READ, bulk[0]);
+        assertEquals(PermissionManager.FLAG_READ, bulk[1]);
+    }
+
+    @Test
+    public void rootRuleCombinesWithPathRules() {
+        Map<String, Integer> grants = grant("", PermissionManager.FLAG_READ);
+        grants.put("documents", PermissionManager.FLAG_WRITE);
+        bless("mixed", grants);
+        assertEquals(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE, mManager.getPermission("documents/a"));
+        assertEquals(PermissionManager.FLAG_READ, mManager.getPermission("contacts/a"));
+    }
+
+    @Test
+    public void removedRootRuleIsRevoked() {
+        bless("root", grant("", PermissionManager.FLAG_READ));
+        bless("root", grant("", PermissionManager.FLAG_DEFAULT));
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents/a"));
+        bless("root", grant("", PermissionManager.FLAG_WRITE));
+        mBlessings.child("root").removeValue();
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents/a"));
+    }
+
+    @Test
+    public void changesOnlyDropDecisionsBelowThem() {
+        for (String path : Arrays.asList("documents", "documents/a", "documents-a", "contacts/a")) {
+            assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission(path));
+        }
+        bless("documents", grant("documents", PermissionManager.FLAG_WRITE));
+        assertEquals(null, mManager.mDecisions.getIfPresent("documents/a"));
+        assertEquals(Integer.valueOf(PermissionManager.FLAG_DEFAULT), mManager.mDecisions.getIfPresent("documents-a"));
+        assertEquals(Integer.valueOf(PermissionManager.FLAG_DEFAULT), mManager.mDecisions.getIfPresent("contacts/a"));
+        assertEquals(PermissionManager.FLAG_WRITE, mManager.getPermission("documents"));
+        assertEquals(PermissionManager.FLAG_WRITE, mManager.getPermission("documents/a"));
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents-a"));
+    }
+
+    @Test
+    public void evictedDecisionsAreInvalidatedWhenCachedAgain() {
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents/a"));
+        for (int i = 0; i < 3 * PermissionManager.DECISION_CACHE_SIZE; i++) {
+            mManager.getPermission("contacts/" + i);
+        }
+        assertEquals(PermissionManager.FLAG_DEFAULT, mManager.getPermission("documents/a"));
+        bless("documents", grant("documents", PermissionManager.FLAG_READ));
+        assertEquals(PermissionManager.FLAG_READ, mManager.getPermission("documents/a"));
+    }
+
+    @Test
+    public void listenersSeeRootGrants() {
+        final List<Integer> seen = new ArrayList<>();
+        mManager.addPermissionEventListener("documents/a", new PermissionManager.OnPermissionChangeListener() {
+            @Override
+            public void onPermissionChange(int current) {
+                seen.add(current);
+            }
+
+            @Override
+            public void onCancelled(StoreError databaseError) {
+            }
+        });
+        bless("root", grant("", PermissionManager.FLAG_READ));
+        mBlessings.child("root").removeValue();
+        List<Integer> expected = new ArrayList<>();
+        expected.add(PermissionManager.FLAG_DEFAULT);
+        expected.add(PermissionManager.FLAG_READ);
+        expected.add(PermissionManager.FLAG_DEFAULT);
+        assertEquals(expected, seen);
+    }
+}
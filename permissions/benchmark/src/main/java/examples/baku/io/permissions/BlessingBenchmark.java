@@ -0,0 +1,82 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import examples.baku.io.permissions.store.StoreSnapshot;
+
+/**
+ * Rule compilation, lookups and iteration of a single synthetic blessing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlessingBenchmark {
+
+    static final int QUERY_COUNT = 1024;
+
+    @Param({"10", "100", "1000", "10000"})
+    int rules;
+
+    @Param({"2", "6", "12"})
+    int depth;
+
+    StoreSnapshot mSnapshot;
+    Blessing mBlessing;
+    String[] mQueries;
+    int mNext;
+    Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.mBlackhole = blackhole;
+        SyntheticBlessings blessings = new SyntheticBlessings(42, rules, depth);
+        mSnapshot = blessings.getBlessing(0, 1, false);
+        mBlessing = new Blessing(mSnapshot);
+        mQueries = blessings.getQueryPaths(QUERY_COUNT).toArray(new String[QUERY_COUNT]);
+    }
+
+    @Benchmark
+    public void setSnapshot() {
+        mBlessing.setSnapshot(mSnapshot);
+    }
+
+    @Benchmark
+    public int getPermissionAt() {
+        return mBlessing.getPermissionAt(mQueries[mNext++ & (QUERY_COUNT - 1)], PermissionManager.FLAG_DEFAULT);
+    }
+
+    @Benchmark
+    public void iterator(Blackhole blackhole) {
+        for (Blessing.Rule rule : mBlessing) {
+            blackhole.consume(rule);
+        }
+    }
+
+    @Benchmark
+    public void visitRules() {
+        mBlessing.visitRules(mVisitor);
+    }
+
+    private final Blessing.RuleVisitor mVisitor = new Blessing.RuleVisitor() {
+        @Override
+        public void visit(Blessing.RuleCursor cursor) {
+            mBlackhole.consume(cursor.getPermissions());
+        }
+    };
+}
@@ -0,0 +1,108 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+import examples.baku.io.permissions.store.MemoryStore;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreSnapshot;
+
+/**
+ * Blessing refreshes and permission lookups of a manager holding synthetic blessings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionManagerBenchmark {
+
+    static final int BLESSING_COUNT = 4;
+    static final int QUERY_COUNT = 1024;
+
+    @Param({"10", "100", "1000", "10000"})
+    int rules;
+
+    @Param({"2", "6", "12"})
+    int depth;
+
+    @Param({"1", "50", "500"})
+    int listeners;
+
+    PermissionManager mManager;
+    StoreSnapshot[] mUpdates;
+    String[] mQueries;
+    List<String> mQueryList;
+    int mNext;
+    Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.mBlackhole = blackhole;
+        SyntheticBlessings blessings = new SyntheticBlessings(42, rules, depth);
+        mManager = new PermissionManager(new MemoryStore().getReference(), SyntheticBlessings.TARGET);
+        mManager.setBatchWindow(PermissionManager.BATCH_IMMEDIATE);
+        for (int i = 0; i < BLESSING_COUNT; i++) {
+            mManager.onBlessingUpdated(blessings.getBlessing(i, BLESSING_COUNT, false));
+        }
+        for (String path : blessings.getQueryPaths(listeners)) {
+            mManager.addPermissionEventListener(path, mListener);
+        }
+        //refreshes toggle the first blessing between its two versions
+        mUpdates = new StoreSnapshot[]{
+                blessings.getBlessing(0, BLESSING_COUNT, true),
+                blessings.getBlessing(0, BLESSING_COUNT, false)
+        };
+        mQueryList = blessings.getQueryPaths(QUERY_COUNT);
+        mQueries = mQueryList.toArray(new String[QUERY_COUNT]);
+    }
+
+    private final PermissionManager.OnPermissionChangeListener mListener = new PermissionManager.OnPermissionChangeListener() {
+        @Override
+        public void onPermissionChange(int current) {
+            mBlackhole.consume(current);
+        }
+
+        @Override
+        public void onCancelled(StoreError databaseError) {
+        }
+    };
+
+    //compile, apply and notify one changed blessing
+    @Benchmark
+    public void refreshPermissions() {
+        mManager.onBlessingUpdated(mUpdates[mNext++ & 1]);
+    }
+
+    //lookups through the decision cache, which holds every query path
+    @Benchmark
+    public int getPermission() {
+        return mManager.getPermission(mQueries[mNext++ & (QUERY_COUNT - 1)]);
+    }
+
+    //lookups that always walk the permission trie
+    @Benchmark
+    public int getPermissionUncached() {
+        return mManager.mPermissions.getPermission(mQueries[mNext++ & (QUERY_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public int[] getPermissions() {
+        return mManager.getPermissions(mQueryList);
+    }
+}
@@ -0,0 +1,113 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import com.google.common.io.BaseEncoding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import examples.baku.io.permissions.synchronization.OperationEngine;
+import examples.baku.io.permissions.synchronization.PatchEngine;
+import examples.baku.io.permissions.synchronization.Rope;
+import examples.baku.io.permissions.synchronization.SyncEngine;
+import examples.baku.io.permissions.synchronization.SyncTextPatch;
+
+/**
+ * Encoding and decoding typing-sized SyncText patches, in each wire format. The bytes per
+ * patch of each combination are printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyncPatchBenchmark {
+
+    static final int PATCH_COUNT = 1024;
+    static final int TEXT_LENGTH = 20000;
+
+    @Param({"operation", "patch"})
+    String engine;
+
+    @Param({"text", "binary"})
+    String format;
+
+    @Param({"ascii", "cyrillic"})
+    String alphabet;
+
+    SyncEngine<Object> mEngine;
+    int mFormat;
+    Object[] mChanges;
+    String[] mEncoded;
+    int mNext;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        mEngine = (SyncEngine<Object>) ("operation".equals(engine) ? new OperationEngine() : new PatchEngine());
+        mFormat = "binary".equals(format) ? SyncTextPatch.FORMAT_BINARY : SyncTextPatch.FORMAT_TEXT;
+        char first = "cyrillic".equals(alphabet) ? '\u0430' : 'a';
+
+        Random random = new Random(42);
+        Rope text = Rope.of(randomText(random, first, TEXT_LENGTH));
+        mChanges = new Object[PATCH_COUNT];
+        mEncoded = new String[PATCH_COUNT];
+        long bytes = 0;
+        for (int i = 0; i < PATCH_COUNT; i++) {
+            int offset = random.nextInt(text.length());
+            int removed = random.nextInt(4) == 0 ? Math.min(text.length() - offset, 1 + random.nextInt(5)) : 0;
+            mChanges[i] = mEngine.edit(text, offset, removed, randomText(random, first, 1 + random.nextInt(8)));
+            mEncoded[i] = encode(mChanges[i]);
+            bytes += mEncoded[i].getBytes(StandardCharsets.UTF_8).length;
+            text = mEngine.apply(text, mChanges[i]);
+        }
+        System.out.println(engine + "/" + format + "/" + alphabet + ": " + bytes / PATCH_COUNT + " bytes per patch");
+    }
+
+    private static String randomText(Random random, char first, int length) {
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            result.append((char) (first + random.nextInt(26)));
+        }
+        return result.toString();
+    }
+
+    private String encode(Object change) {
+        if (mFormat == SyncTextPatch.FORMAT_BINARY) {
+            return BaseEncoding.base64().encode(mEngine.encodeBinary(change));
+        }
+        return mEngine.encode(change);
+    }
+
+    @Benchmark
+    public String encode() {
+        return encode(mChanges[mNext++ & (PATCH_COUNT - 1)]);
+    }
+
+    //what processPatch does with each patch before applying it
+    @Benchmark
+    public Object decode() {
+        String encoded = mEncoded[mNext++ & (PATCH_COUNT - 1)];
+        if (mFormat == SyncTextPatch.FORMAT_BINARY) {
+            return mEngine.decodeBinary(BaseEncoding.base64().decode(encoded));
+        }
+        return mEngine.decode(encoded);
+    }
+}
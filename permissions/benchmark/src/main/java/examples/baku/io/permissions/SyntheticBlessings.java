@@ -0,0 +1,141 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import examples.baku.io.permissions.store.MemoryStore;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+import examples.baku.io.permissions.store.StoreValueListener;
+
+/**
+ * Seeded generator of blessing snapshots, so every run of a benchmark sees the same rules.
+ *
+ * Rules are spread over paths of one to depth segments. Each segment is picked from a small
+ * alphabet, so rules share prefixes the way documents of the same kind do.
+ */
+class SyntheticBlessings {
+
+    static final String TARGET = "benchmark";
+
+    private final Random mRandom;
+    private final int mBranching;
+    private final List<String> mRulePaths = new ArrayList<>();
+    private final List<Integer> mRulePermissions = new ArrayList<>();
+    private final StoreReference mBlessingsRef = new MemoryStore().getReference(PermissionManager.KEY_BLESSINGS);
+
+    SyntheticBlessings(long seed, int ruleCount, int depth) {
+        if (ruleCount < 1 || depth < 1) {
+            throw new IllegalArgumentException("rules and depth must be positive");
+        }
+        this.mRandom = new Random(seed);
+        this.mBranching = (int) Math.ceil(Math.pow(ruleCount, 1.0 / depth)) + 1;
+
+        Set<String> paths = new LinkedHashSet<>();
+        while (paths.size() < ruleCount) {
+            paths.add(randomPath(1 + mRandom.nextInt(depth)));
+        }
+        for (String path : paths) {
+            mRulePaths.add(path);
+            mRulePermissions.add(randomPermissions());
+        }
+    }
+
+    List<String> getRulePaths() {
+        return mRulePaths;
+    }
+
+    //split the rules round robin over count blessings. flipped blessings grant every rule
+    //PUSH on top of its usual permissions, to toggle between two versions of the same blessing.
+    StoreSnapshot getBlessing(int index, int count, boolean flipped) {
+        Map<String, Object> rules = new LinkedHashMap<>();
+        for (int i = index; i < mRulePaths.size(); i += count) {
+            Map<String, Object> node = rules;
+            for (String segment : mRulePaths.get(i).split("/")) {
+                node = getOrCreate(node, segment);
+            }
+            int permissions = mRulePermissions.get(i);
+            node.put(PermissionManager.KEY_PERMISSIONS, flipped ? permissions | PermissionManager.FLAG_PUSH : permissions);
+        }
+        Map<String, Object> blessing = new LinkedHashMap<>();
+        String id = "blessing" + index;
+        blessing.put("id", id);
+        blessing.put("target", TARGET);
+        blessing.put("source", "source" + index);
+        blessing.put(Blessing.KEY_RULES, rules);
+        StoreReference ref = mBlessingsRef.child(id);
+        ref.setValue(blessing);
+        return read(ref);
+    }
+
+    //the in-memory store dispatches inline, so the value is delivered before this returns
+    private static StoreSnapshot read(StoreReference ref) {
+        final StoreSnapshot[] result = new StoreSnapshot[1];
+        ref.addSingleValueListener(new StoreValueListener() {
+            @Override
+            public void onDataChange(StoreSnapshot dataSnapshot) {
+                result[0] = dataSnapshot;
+            }
+
+            @Override
+            public void onCancelled(StoreError databaseError) {
+                throw databaseError.toException();
+            }
+        });
+        return result[0];
+    }
+
+    //paths below the rules, where listeners and lookups usually land, mixed with some misses
+    List<String> getQueryPaths(int count) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String rule = mRulePaths.get(mRandom.nextInt(mRulePaths.size()));
+            switch (mRandom.nextInt(4)) {
+                case 0:
+                    result.add(rule);
+                    break;
+                case 1:
+                    result.add(randomPath(1 + mRandom.nextInt(3)) + "/miss");
+                    break;
+                default:
+                    result.add(rule + "/" + randomPath(1 + mRandom.nextInt(3)));
+            }
+        }
+        return result;
+    }
+
+    private String randomPath(int depth) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append('s').append(mRandom.nextInt(mBranching));
+        }
+        return builder.toString();
+    }
+
+    private int randomPermissions() {
+        return mRandom.nextBoolean() ? PermissionManager.FLAG_READ : PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getOrCreate(Map<String, Object> node, String segment) {
+        Object child = node.get(segment);
+        if (!(child instanceof Map)) {
+            child = new LinkedHashMap<String, Object>();
+            node.put(segment, child);
+        }
+        return (Map<String, Object>) child;
+    }
+}
@@ -0,0 +1,217 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.messenger;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two messengers talking through a {@link SocketRelay} on the loopback interface.
+ *
+ * The sender emits pings one after the other, the echo acks each with its payload, and the run
+ * reports the emit to ack round trip percentiles. Then the relay is restarted on the same port
+ * several times, dropping both connections, and after each restart the run reports how long
+ * the sender took to get an ack again, and whether a message to a group the echo joined before
+ * the restart still reaches it.
+ *
+ * Options are key=value arguments, see DEFAULTS. The exit status is 1 if an ack was lost, an echo
+ * didn't match, or the messengers didn't reconnect.
+ */
+public class SocketLoopback {
+
+    static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("pings", "10000");
+        DEFAULTS.put("payloadBytes", "100");
+        DEFAULTS.put("restarts", "3");          //relay restarts, each dropping every connection
+        DEFAULTS.put("ackTimeoutMillis", "2000");
+    }
+
+    static final String SENDER = "sender";
+    static final String ECHO = "echo";
+    static final String GROUP = "loopback";
+    static final String EVENT_PING = "ping";
+    static final String EVENT_NEWS = "news";
+    static final long RECONNECT_TIMEOUT_MILLIS = 30000;
+    static final long RECONNECT_PING_MILLIS = 50;  //ack timeout of the pings waiting for a reconnect
+    static final long RELAY_BIND_RETRY_MILLIS = 10;
+
+    private final Map<String, String> mOptions;
+    private final ExecutorService mSenderExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mEchoExecutor = Executors.newSingleThreadExecutor();
+    private final BlockingQueue<String> mNews = new ArrayBlockingQueue<>(16);
+    private SocketRelay mRelay;
+    private Messenger mSender;
+    private Messenger mEcho;
+
+    SocketLoopback(Map<String, String> options) {
+        this.mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0 || !DEFAULTS.containsKey(arg.substring(0, split))) {
+                throw new IllegalArgumentException("unknown option " + arg + ", expected one of " + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        boolean passed = new SocketLoopback(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private long getLong(String option) {
+        return Long.parseLong(mOptions.get(option));
+    }
+
+    private int getInt(String option) {
+        return Integer.parseInt(mOptions.get(option));
+    }
+
+    boolean run() throws Exception {
+        System.out.println("options " + mOptions);
+        mRelay = new SocketRelay(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = mRelay.getAddress();
+        mSender = new Messenger(SENDER, new SocketTransport(address, mSenderExecutor));
+        mEcho = new Messenger(ECHO, new SocketTransport(address, mEchoExecutor));
+        mEcho.on(EVENT_PING, new Messenger.Listener() {
+            @Override
+            public void call(String args, Messenger.Ack callback) {
+                if (callback != null) {
+                    callback.call(args);
+                }
+            }
+        });
+        mEcho.on(EVENT_NEWS, new Messenger.Listener() {
+            @Override
+            public void call(String args, Messenger.Ack callback) {
+                mNews.offer(args);
+            }
+        });
+        mEcho.join(GROUP);
+        try {
+            if (!awaitAck("warm up")) {
+                System.out.println("no ack from " + ECHO);
+                return false;
+            }
+            return roundTrips() & restarts(address);
+        } finally {
+            mSender.disconnect();
+            mEcho.disconnect();
+            mRelay.shutdown();
+            mSenderExecutor.shutdown();
+            mEchoExecutor.shutdown();
+        }
+    }
+
+    private boolean roundTrips() throws InterruptedException {
+        int pings = getInt("pings");
+        long timeout = getLong("ackTimeoutMillis");
+        char[] filler = new char[getInt("payloadBytes")];
+        Arrays.fill(filler, 'x');
+        String payload = new String(filler);
+        long[] latencies = new long[pings];
+        int lost = 0;
+        int mismatched = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < pings; i++) {
+            String sent = i + payload;
+            long emitted = System.nanoTime();
+            String echoed = ping(sent, timeout);
+            latencies[i] = System.nanoTime() - emitted;
+            if (echoed == null) {
+                lost++;
+            } else if (!sent.equals(echoed)) {
+                mismatched++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        System.out.printf("%d round trips in %.1f s, %.0f per second, %d lost, %d mismatched%n", pings, seconds,
+                pings / seconds, lost, mismatched);
+        System.out.printf("emit to ack: p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 100));
+        return lost == 0 && mismatched == 0;
+    }
+
+    //each restart closes both connections, which must come back on their own
+    private boolean restarts(InetSocketAddress address) throws Exception {
+        boolean passed = true;
+        for (int i = 0; i < getInt("restarts"); i++) {
+            mRelay.shutdown();
+            mRelay = restartRelay(address);
+            long start = System.nanoTime();
+            boolean acked = awaitAck("restart " + i);
+            double recovered = (System.nanoTime() - start) / 1e6;
+
+            mNews.clear();
+            mSender.to(GROUP).emit(EVENT_NEWS, "restart " + i);
+            boolean grouped = mNews.poll(getLong("ackTimeoutMillis"), TimeUnit.MILLISECONDS) != null;
+            System.out.printf("restart %d: %s after %.0f ms, group message %s%n", i,
+                    acked ? "acked again" : "gave up", recovered, grouped ? "delivered" : "lost");
+            passed &= acked && grouped;
+        }
+        return passed;
+    }
+
+    //the old relay's loop closes its socket after shutdown() returns
+    private static SocketRelay restartRelay(InetSocketAddress address) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_TIMEOUT_MILLIS);
+        while (true) {
+            try {
+                return new SocketRelay(address);
+            } catch (BindException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(RELAY_BIND_RETRY_MILLIS);
+            }
+        }
+    }
+
+    //pings until one is acked, since a ping is dropped while the relay doesn't know the echo
+    private boolean awaitAck(String payload) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECONNECT_TIMEOUT_MILLIS);
+        while (System.nanoTime() < deadline) {
+            if (ping(payload, RECONNECT_PING_MILLIS) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //the echo of payload, or null if it wasn't acked in time
+    private String ping(String payload, long timeoutMillis) throws InterruptedException {
+        final BlockingQueue<String> acks = new ArrayBlockingQueue<>(1);
+        mSender.to(ECHO).emit(EVENT_PING, payload, new Messenger.Ack() {
+            @Override
+            public void call(String args) {
+                acks.offer(args);
+            }
+        }, timeoutMillis, null);
+        return acks.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //nearest rank, in microseconds
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e3;
+    }
+}
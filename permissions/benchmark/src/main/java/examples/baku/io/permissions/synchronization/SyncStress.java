@@ -0,0 +1,362 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import examples.baku.io.permissions.store.MemoryStore;
+import examples.baku.io.permissions.store.StoreChildListener;
+import examples.baku.io.permissions.store.StoreError;
+import examples.baku.io.permissions.store.StoreReference;
+import examples.baku.io.permissions.store.StoreSnapshot;
+
+/**
+ * Replicas of one SyncText document typing at the same time, against the in-memory store.
+ *
+ * The document starts with a line per replica. Each replica has a view thread that replays a
+ * {@link TypingTrace} through update() from the end of its line, and applies the remote edits it
+ * is told about, the way ComposeActivity does. Store events reach every replica after a fixed
+ * delay, standing in for the network. Once every trace is done, the replicas are given time to
+ * settle, and the run reports:
+ * - edit to visible latency: from typing a probe word to it showing at each other replica
+ * - patches written per second, and patch bytes per keystroke
+ * - whether every replica's getText(), and every view, ended up the same
+ *
+ * Options are key=value arguments, see DEFAULTS. The exit status is 1 if the replicas diverged.
+ */
+public class SyncStress {
+
+    static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("engine", "operation");    //operation or patch
+        DEFAULTS.put("replicas", "4");
+        DEFAULTS.put("keys", "200");            //keystrokes per replica
+        DEFAULTS.put("keyMillis", "60");        //mean time between keystrokes
+        DEFAULTS.put("latencyMillis", "20");    //store event delivery delay
+        DEFAULTS.put("idleMillis", "0");        //SyncText.setDebounce, 0 to send every edit
+        DEFAULTS.put("maxLatencyMillis", "0");
+        DEFAULTS.put("probeEvery", "3");        //words between probes
+        DEFAULTS.put("seed", "42");
+    }
+
+    static final long LINK_TIMEOUT_MILLIS = 10000;
+    static final long SETTLE_TIMEOUT_MILLIS = 30000;
+    static final long SETTLE_POLL_MILLIS = 50;
+
+    private final Map<String, String> mOptions;
+    private final StoreReference mDocument;
+    private final StoreReference mOutput;   //initial text of the document
+    private final ScheduledExecutorService mNetwork = Executors.newSingleThreadScheduledExecutor();
+    private final List<Replica> mReplicas = new ArrayList<>();
+
+    private final Map<String, Long> mProbeTyped = new ConcurrentHashMap<>();   //<probe, nanoTime typed>
+    private final ConcurrentLinkedQueue<Long> mLatencies = new ConcurrentLinkedQueue<>(); //nanos
+    private final AtomicLong mPatches = new AtomicLong();
+    private final AtomicLong mPatchBytes = new AtomicLong();
+    private CountDownLatch mLinked;
+    private CountDownLatch mTyped;
+
+    SyncStress(Map<String, String> options) {
+        this.mOptions = options;
+        final long latency = getLong("latencyMillis");
+        mDocument = new MemoryStore(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mNetwork.schedule(command, latency, TimeUnit.MILLISECONDS);
+            }
+        }).getReference("stress");
+        mOutput = mDocument.child("output");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0 || !DEFAULTS.containsKey(arg.substring(0, split))) {
+                throw new IllegalArgumentException("unknown option " + arg + ", expected one of " + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        boolean converged = new SyncStress(options).run();
+        System.exit(converged ? 0 : 1);
+    }
+
+    private long getLong(String option) {
+        return Long.parseLong(mOptions.get(option));
+    }
+
+    private int getInt(String option) {
+        return Integer.parseInt(mOptions.get(option));
+    }
+
+    private SyncEngine<?> newEngine() {
+        String engine = mOptions.get("engine");
+        if ("operation".equals(engine)) {
+            return new OperationEngine();
+        } else if ("patch".equals(engine)) {
+            return new PatchEngine();
+        }
+        throw new IllegalArgumentException("unknown engine " + engine);
+    }
+
+    boolean run() throws Exception {
+        System.out.println("options " + mOptions);
+        int replicas = getInt("replicas");
+        if (replicas < 1) {
+            throw new IllegalArgumentException("no replicas");
+        }
+        StringBuilder initial = new StringBuilder();
+        for (int i = 0; i < replicas; i++) {
+            initial.append("replica ").append(Integer.toString(i, 36)).append(":\n");
+        }
+        mOutput.setValue(initial.toString());
+        mDocument.child(SyncText.KEY_PATCHES).addChildListener(mPatchCounter);
+        mLinked = new CountDownLatch(replicas);
+        mTyped = new CountDownLatch(replicas);
+        for (int i = 0; i < replicas; i++) {
+            mReplicas.add(new Replica(i));
+        }
+        try {
+            if (!mLinked.await(LINK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("replicas didn't link");
+            }
+
+            long start = System.nanoTime();
+            for (Replica replica : mReplicas) {
+                replica.start();
+            }
+            mTyped.await();
+            long typed = System.nanoTime();
+            long settled = typed;
+            boolean converged;
+            while (!(converged = converged())
+                    && TimeUnit.NANOSECONDS.toMillis(settled - typed) < SETTLE_TIMEOUT_MILLIS) {
+                Thread.sleep(SETTLE_POLL_MILLIS);
+                settled = System.nanoTime();
+            }
+            report(start, typed, settled, converged);
+            return converged;
+        } finally {
+            for (Replica replica : mReplicas) {
+                replica.stop();
+            }
+            mNetwork.shutdown();
+        }
+    }
+
+    //every view shows the text every replica has committed
+    private boolean converged() throws Exception {
+        Set<String> texts = new HashSet<>();
+        for (Replica replica : mReplicas) {
+            texts.add(replica.mSync.getText());
+            texts.add(replica.readView());
+        }
+        return texts.size() == 1;
+    }
+
+    private void report(long start, long typed, long settled, boolean converged) {
+        long keystrokes = 0;
+        int lost = 0;
+        for (Replica replica : mReplicas) {
+            keystrokes += replica.mTrace.size();
+            lost += replica.mUnseenProbes.size();
+        }
+        double seconds = (settled - start) / 1e9;
+        System.out.printf("typed %d keystrokes in %.1f s, settled after %d ms%n", keystrokes,
+                (typed - start) / 1e9, TimeUnit.NANOSECONDS.toMillis(settled - typed));
+        System.out.printf("patches %d, %.1f per second, %.1f patch bytes per keystroke%n", mPatches.get(),
+                mPatches.get() / seconds, (double) mPatchBytes.get() / keystrokes);
+
+        long[] latencies = new long[mLatencies.size()];
+        int count = 0;
+        for (Long latency : mLatencies) {
+            latencies[count++] = latency;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("edit to visible, %d samples, %d probes not seen: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latencies.length, lost, percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), percentile(latencies, 100));
+        System.out.println("converged " + converged);
+        if (!converged) {
+            for (Replica replica : mReplicas) {
+                System.out.println("replica " + replica.mName + ": " + replica.mSync.getText());
+            }
+        }
+    }
+
+    //nearest rank, in milliseconds
+    private static double percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private final StoreChildListener mPatchCounter = new StoreChildListener() {
+        @Override
+        public void onChildAdded(StoreSnapshot dataSnapshot, String previousChildName) {
+            SyncTextPatch patch = dataSnapshot.getValue(SyncTextPatch.class);
+            mPatches.incrementAndGet();
+            mPatchBytes.addAndGet(patch.getPatch().getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        @Override
+        public void onChildChanged(StoreSnapshot dataSnapshot, String previousChildName) {
+
+        }
+
+        @Override
+        public void onChildRemoved(StoreSnapshot dataSnapshot) {   //compacted
+
+        }
+
+        @Override
+        public void onCancelled(StoreError databaseError) {
+
+        }
+    };
+
+    //one device editing the document, confined to its view thread
+    private class Replica implements SyncText.OnTextEditListener, Runnable {
+
+        final int mIndex;
+        final String mName;
+        final TypingTrace mTrace;
+        final SyncText mSync;
+        final ScheduledExecutorService mView = Executors.newSingleThreadScheduledExecutor();
+        final Set<String> mUnseenProbes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final StringBuilder mText = new StringBuilder();
+        int mCursor;
+        int mNext;  //keystroke of mTrace
+
+        Replica(int index) {
+            mIndex = index;
+            mName = Integer.toString(index, 36);
+            mTrace = new TypingTrace(getLong("seed") + index, mName, getInt("keys"), getLong("keyMillis"),
+                    getInt("probeEvery"));
+            mSync = new SyncText(mDocument, mOutput, newEngine(), mView);
+            mSync.setDebounce(getLong("idleMillis"), getLong("maxLatencyMillis"));
+            mSync.setOnTextEditListener(this);
+        }
+
+        void start() {
+            mView.schedule(this, mTrace.get(0).delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            mSync.unlink();
+            mView.shutdown();
+        }
+
+        String readView() throws Exception {
+            return mView.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return mText.toString();
+                }
+            }).get();
+        }
+
+        //types the next keystroke
+        @Override
+        public void run() {
+            TypingTrace.Keystroke keystroke = mTrace.get(mNext++);
+            switch (keystroke.kind) {
+                case TypingTrace.TYPE:
+                    mText.insert(mCursor++, keystroke.typed);
+                    break;
+                case TypingTrace.BACKSPACE:
+                    if (mCursor > 0) {
+                        mText.deleteCharAt(--mCursor);
+                    }
+                    break;
+                case TypingTrace.MOVE:
+                    int space = mText.indexOf(" ", (int) (keystroke.target * mText.length()));
+                    mCursor = space < 0 ? mText.length() : space + 1;
+                    break;
+            }
+            if (keystroke.probe != null) {  //timed from before it is sent
+                mProbeTyped.put(keystroke.probe, System.nanoTime());
+                for (Replica replica : mReplicas) {
+                    if (replica != this) {
+                        replica.mUnseenProbes.add(keystroke.probe);
+                    }
+                }
+            }
+            if (keystroke.kind != TypingTrace.MOVE) {
+                mSync.update(mText.toString());
+            }
+
+            if (mNext < mTrace.size()) {
+                mView.schedule(this, mTrace.get(mNext).delayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                mTyped.countDown();
+            }
+        }
+
+        @Override
+        public void onTextReset(String currentText) {
+            mText.setLength(0);
+            mText.append(currentText);
+            mCursor = lineEnd();
+            mLinked.countDown();
+            checkProbes();
+        }
+
+        @Override
+        public void onTextEdit(int offset, int removedLength, String inserted) {
+            mText.replace(offset, offset + removedLength, inserted);
+            if (offset + removedLength <= mCursor) {
+                mCursor += inserted.length() - removedLength;
+            } else if (offset < mCursor) {  //inside the replaced span
+                mCursor = offset + inserted.length();
+            }
+            if (!inserted.isEmpty()) {
+                checkProbes();
+            }
+        }
+
+        //end of this replica's line, or of the text
+        private int lineEnd() {
+            int end = -1;
+            for (int i = 0; i <= mIndex; i++) {
+                end = mText.indexOf("\n", end + 1);
+                if (end < 0) {
+                    return mText.length();
+                }
+            }
+            return end;
+        }
+
+        private void checkProbes() {
+            long now = System.nanoTime();
+            for (String probe : mUnseenProbes) {
+                if (mText.indexOf(probe) >= 0) {
+                    mUnseenProbes.remove(probe);
+                    mLatencies.add(now - mProbeTyped.get(probe));
+                }
+            }
+        }
+    }
+}
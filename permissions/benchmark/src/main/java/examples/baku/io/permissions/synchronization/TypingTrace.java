@@ -0,0 +1,123 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded keystrokes of one person typing prose, so every run of the stress harness replays the
+ * same edits.
+ *
+ * Words are typed at a jittered pace, with longer pauses between words and sentences. Some
+ * letters are typos, corrected with a backspace, and some sentences end with a jump to another
+ * word to carry on there. Every few words is a probe: a word no other trace types, whose arrival
+ * at the other replicas can be timed.
+ */
+final class TypingTrace {
+
+    static final int TYPE = 0;
+    static final int BACKSPACE = 1;
+    static final int MOVE = 2;  //cursor to the word start nearest target, a fraction of the text
+
+    static final char PROBE_MARK = '@';
+
+    private static final int TYPO_PERCENT = 3;
+    private static final int SENTENCE_WORDS = 12;   //mean words per sentence
+    private static final int MOVE_SENTENCES = 4;    //mean sentences between cursor jumps
+    private static final String[] WORDS = {
+            "the", "of", "and", "to", "in", "is", "that", "for", "it", "as", "was", "with", "be",
+            "by", "on", "not", "this", "are", "or", "at", "from", "but", "an", "they", "which",
+            "one", "you", "were", "all", "we", "when", "there", "can", "more", "if", "no", "out",
+            "so", "said", "what", "up", "its", "about", "into", "than", "them", "only", "other",
+            "new", "some", "could", "time", "these", "two", "may", "then", "first", "any", "like",
+            "document", "shared", "device", "permission", "message", "draft", "subject", "send",
+    };
+
+    static final class Keystroke {
+        final int kind;
+        final char typed;
+        final double target;
+        final long delayMillis; //before this keystroke
+        final String probe; //completed by this keystroke, if any
+
+        Keystroke(int kind, char typed, double target, long delayMillis, String probe) {
+            this.kind = kind;
+            this.typed = typed;
+            this.target = target;
+            this.delayMillis = delayMillis;
+            this.probe = probe;
+        }
+    }
+
+    private final Random mRandom;
+    private final long mKeyMillis;
+    private final List<Keystroke> mKeystrokes = new ArrayList<>();
+
+    //about keys keystrokes, keyMillis apart on average. name makes the probes unique.
+    TypingTrace(long seed, String name, int keys, long keyMillis, int probeEvery) {
+        if (keys < 1 || keyMillis < 0 || probeEvery < 0) {
+            throw new IllegalArgumentException("invalid trace " + keys + "/" + keyMillis + "/" + probeEvery);
+        }
+        this.mRandom = new Random(seed);
+        this.mKeyMillis = keyMillis;
+
+        long pause = 0;
+        for (int words = 0; mKeystrokes.size() < keys; words++) {
+            String probe = null;
+            String word;
+            if (probeEvery > 0 && words % probeEvery == probeEvery - 1) {
+                probe = PROBE_MARK + name + "." + words + PROBE_MARK;
+                word = probe;
+            } else {
+                word = WORDS[mRandom.nextInt(WORDS.length)];
+            }
+            for (int i = 0; i < word.length(); i++) {
+                if (probe == null && mRandom.nextInt(100) < TYPO_PERCENT) {
+                    add(TYPE, (char) ('a' + mRandom.nextInt(26)), pause + keyDelay(), null);
+                    add(BACKSPACE, '\b', 2 * keyDelay(), null);  //noticing takes a while
+                    pause = 0;
+                }
+                add(TYPE, word.charAt(i), pause + keyDelay(), i == word.length() - 1 ? probe : null);
+                pause = 0;
+            }
+
+            boolean sentenceEnd = mRandom.nextInt(SENTENCE_WORDS) == 0;
+            if (sentenceEnd) {
+                add(TYPE, '.', keyDelay(), null);
+            }
+            add(TYPE, ' ', keyDelay(), null);
+            pause = mKeyMillis * mRandom.nextInt(3);
+            if (sentenceEnd) {
+                pause += 10 * mKeyMillis;
+                if (mRandom.nextInt(MOVE_SENTENCES) == 0) {
+                    add(MOVE, '\0', mRandom.nextDouble(), pause, null);
+                    pause = 0;
+                }
+            }
+        }
+    }
+
+    private long keyDelay() {
+        return mKeyMillis / 2 + (long) (mRandom.nextDouble() * mKeyMillis);
+    }
+
+    private void add(int kind, char typed, long delayMillis, String probe) {
+        add(kind, typed, 0, delayMillis, probe);
+    }
+
+    private void add(int kind, char typed, double target, long delayMillis, String probe) {
+        mKeystrokes.add(new Keystroke(kind, typed, target, delayMillis, probe));
+    }
+
+    int size() {
+        return mKeystrokes.size();
+    }
+
+    Keystroke get(int index) {
+        return mKeystrokes.get(index);
+    }
+}
@@ -0,0 +1,39 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark stand-in. Runs what is posted to it on its looper's thread, printing what it throws.
+ */
+public class Handler {
+
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        if (looper == null) throw new NullPointerException("null looper");
+        this.mLooper = looper;
+    }
+
+    public final boolean post(Runnable runnable) {
+        return postDelayed(runnable, 0);
+    }
+
+    //a negative delay runs it as soon as possible, like a zero one
+    public final boolean postDelayed(final Runnable runnable, long delayMillis) {
+        mLooper.mQueue.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
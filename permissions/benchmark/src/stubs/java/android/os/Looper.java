@@ -0,0 +1,42 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Benchmark stand-in. The main looper is a single daemon thread running what its handlers post,
+ * in the order it is due.
+ */
+public final class Looper {
+
+    private static final Looper sMainLooper = new Looper("main");
+
+    final ScheduledExecutorService mQueue;
+    private volatile Thread mThread;
+
+    private Looper(final String name) {
+        mQueue = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                mThread = thread;
+                return thread;
+            }
+        });
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    //the main looper on its thread, null on any other
+    public static Looper myLooper() {
+        return Thread.currentThread() == sMainLooper.mThread ? sMainLooper : null;
+    }
+}
@@ -0,0 +1,27 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package android.os;
+
+/**
+ * Benchmark stand-in. Messages are only parceled between activities, never in benchmarks.
+ */
+public final class Parcel {
+
+    public void writeString(String value) {
+        throw new UnsupportedOperationException("no parcels in benchmarks");
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException("no parcels in benchmarks");
+    }
+
+    public void writeByte(byte value) {
+        throw new UnsupportedOperationException("no parcels in benchmarks");
+    }
+
+    public byte readByte() {
+        throw new UnsupportedOperationException("no parcels in benchmarks");
+    }
+}
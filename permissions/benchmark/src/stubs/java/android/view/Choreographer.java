@@ -0,0 +1,49 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Benchmark stand-in. Frames are every FRAME_MILLIS on the main looper, which is the only thread
+ * the choreographer can be reached from, as on a device.
+ */
+public final class Choreographer {
+
+    static final long FRAME_MILLIS = 16;
+
+    private static final Choreographer sInstance = new Choreographer();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Choreographer() {
+    }
+
+    public static Choreographer getInstance() {
+        if (Looper.myLooper() == null) {
+            throw new IllegalStateException("The current thread must have a looper!");
+        }
+        return sInstance;
+    }
+
+    //called back at the start of the next frame
+    public void postFrameCallback(final FrameCallback callback) {
+        if (callback == null) throw new IllegalArgumentException("callback must not be null");
+        long now = System.nanoTime();
+        long frameNanos = FRAME_MILLIS * 1000000;
+        final long frame = (now / frameNanos + 1) * frameNanos;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                callback.doFrame(frame);
+            }
+        }, (frame - now) / 1000000);
+    }
+
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+}